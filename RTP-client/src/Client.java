@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
 import java.text.*;
 import java.awt.*;
@@ -27,17 +28,21 @@ public class Client{
     JLabel statLabel1 = new JLabel();
     JLabel statLabel2 = new JLabel();
     JLabel statLabel3 = new JLabel();
-    JLabel iconLabel = new JLabel();
-    ImageIcon icon;
+    VideoCanvas canvas; //draws the frames, off the EDT
 
     //RTP variables:
     //----------------
-    DatagramPacket rcvdp; //UDP packet received from the server
-    DatagramSocket RTPsocket; //socket to be used to send and receive UDP packets
+    RtpReceiver rtpReceiver; //receives the RTP packets from the server and reassembles the frames
     static int RTP_RCV_PORT = 25000; //port where the client will receive the RTP packets
+    static boolean MULTICAST = Boolean.getBoolean("rtp.multicast"); //view the multicast stream of the video
+    static boolean TCP = Boolean.getBoolean("rtp.tcp"); //receive RTP and RTCP on the RTSP connection, where UDP is blocked
+    static int RTP_CHANNEL = 0; //interleaved channel of the RTP packets over TCP, RTCP on the next one
+    static boolean NACK = Boolean.parseBoolean(System.getProperty("rtp.nack", "true")); //ask for the packets lost again, over UDP
+    InetAddress multicastGroup; //group the server sends the stream to, null for unicast
+    int multicastPort;          //and its RTP port
+    int multicastTtl = 1;
     
-    Timer timer; //timer used to receive data from the UDP socket
-    byte[] buf; //buffer used to store data received from the server 
+    Timer timer; //timer used to play the frames received out
    
     //RTSP variables
     //----------------
@@ -49,8 +54,11 @@ public class Client{
     Socket RTSPsocket; //socket used to send/receive RTSP messages
     InetAddress ServerIPAddr;
     //input and output stream filters
-    static BufferedReader RTSPBufferedReader;
+    static InputStream RTSPInputStream;
+    static ByteBuffer RTSPBuffer; //bytes read from it, not parsed yet
+    static RtspParser RTSPParser = new RtspParser(); //reused from response to response
     static BufferedWriter RTSPBufferedWriter;
+    static OutputStream RTSPOutputStream; //under RTSPBufferedWriter, for the interleaved RTCP packets
     static String VideoFileName; //video file to request to the server
     int RTSPSeqNb = 0; //Sequence number of RTSP messages within the session
     int RTSPid = 0; // ID of the RTSP session (given by the RTSP Server)
@@ -59,27 +67,27 @@ public class Client{
 
     //RTCP variables
     //----------------
-    DatagramSocket RTCPsocket;          //UDP socket for sending RTCP packets
-    static int RTCP_RCV_PORT = 19001;   //port where the client will receive the RTP packets
-    static int RTCP_PERIOD = 400;       //How often to send RTCP packets
+    DatagramSocket RTCPsocket;          //UDP socket for the RTCP packets, on the RTP port + 1
+    static int RTCP_RCV_PORT = 19001;   //port where the server will receive the RTCP packets
+    static int RTCP_PERIOD = 400;       //How often to send RTCP packets, in unicast
+    InetSocketAddress rtcpDest;         //where they go: the server, or the multicast group
     RtcpSender rtcpSender;
 
     //Video constants:
     //------------------
     static int MJPEG_TYPE = 26; //RTP payload type for MJPEG video
+    static int RTP_CLOCK = 90000; //RTP timestamp units per second, 90 kHz for video (RFC 2435)
 
     //Statistics variables:
     //------------------
+    //the packet counts are kept by the rtpReceiver
     double statDataRate;        //Rate of video data received in bytes/s
-    int statTotalBytes;         //Total number of bytes received in a session
     double statStartTime;       //Time in milliseconds when start is pressed
     double statTotalPlayTime;   //Time in milliseconds of video playing since beginning
     float statFractionLost;     //Fraction of RTP data packets from sender lost since the prev packet was sent
-    int statCumLost;            //Number of packets lost
-    int statExpRtpNb;           //Expected Sequence number of RTP messages within the session
-    int statHighSeqNb;          //Highest sequence number received in session
 
-    FrameSynchronizer fsynch;
+    FrameDecoder decoder; //decodes the frames received, off the EDT
+    JitterBuffer<FrameAssembler.Frame> jitterBuffer; //plays them out at their timestamps
    
     //--------------------------
     //Constructor
@@ -114,17 +122,18 @@ public class Client{
         statLabel2.setText("Packets Lost: 0");
         statLabel3.setText("Data Rate (bytes/sec): 0");
 
-        //Image display label
-        iconLabel.setIcon(null);
+        //Image display surface
+        decoder = new FrameDecoder();
+        canvas = new VideoCanvas(decoder);
         
         //frame layout
         mainPanel.setLayout(null);
-        mainPanel.add(iconLabel);
+        mainPanel.add(canvas);
         mainPanel.add(buttonPanel);
         mainPanel.add(statLabel1);
         mainPanel.add(statLabel2);
         mainPanel.add(statLabel3);
-        iconLabel.setBounds(0,0,380,280);
+        canvas.setBounds(0,0,380,280);
         buttonPanel.setBounds(0,280,380,50);
         statLabel1.setBounds(0,330,380,20);
         statLabel2.setBounds(0,350,380,20);
@@ -143,11 +152,12 @@ public class Client{
         //init RTCP packet sender
         rtcpSender = new RtcpSender(400);
 
-        //allocate enough memory for the buffer used to receive data from the server
-        buf = new byte[15000];    
-
-        //create the frame synchronizer
-        fsynch = new FrameSynchronizer(100);
+        //create the jitter buffer; the images of the frames it drops are reused
+        jitterBuffer = new JitterBuffer<FrameAssembler.Frame>(RTP_CLOCK) {
+            protected void dropped(FrameAssembler.Frame frame) {
+                decoder.recycle(frame.image);
+            }
+        };
     }
 
     //------------------------------------
@@ -175,8 +185,18 @@ public class Client{
         //------------------
 
         //Set input and output stream filters:
-        RTSPBufferedReader = new BufferedReader(new InputStreamReader(theClient.RTSPsocket.getInputStream()));
-        RTSPBufferedWriter = new BufferedWriter(new OutputStreamWriter(theClient.RTSPsocket.getOutputStream()));
+        if (TCP) {
+            //the responses arrive between the RTP and RTCP packets
+            InterleavedReader interleavedReader = new InterleavedReader(theClient.RTSPsocket.getInputStream(), theClient.new Interleaved());
+            RTSPInputStream = interleavedReader.input();
+            interleavedReader.start();
+        }
+        else
+            RTSPInputStream = theClient.RTSPsocket.getInputStream();
+        RTSPBuffer = ByteBuffer.allocate(RtspParser.MAX_MESSAGE_SIZE);
+        RTSPBuffer.flip();
+        RTSPOutputStream = theClient.RTSPsocket.getOutputStream();
+        RTSPBufferedWriter = new BufferedWriter(new OutputStreamWriter(RTSPOutputStream));
 
         //init RTSP state:
         state = INIT;
@@ -199,21 +219,6 @@ public class Client{
 
             System.out.println("Setup Button pressed !"); 
             if (state == INIT) {
-                //Init non-blocking RTPsocket that will be used to receive data
-                try {
-                    //construct a new DatagramSocket to receive RTP packets from the server, on port RTP_RCV_PORT
-                    RTPsocket = new DatagramSocket(RTP_RCV_PORT);
-                    //UDP socket for sending QoS RTCP packets
-                    RTCPsocket = new DatagramSocket();
-                    //set TimeOut value of the socket to 5msec.
-                    RTPsocket.setSoTimeout(5);
-                }
-                catch (SocketException se)
-                {
-                    System.out.println("Socket exception: "+se);
-                    System.exit(0);
-                }
-
                 //init RTSP sequence number
                 RTSPSeqNb = 1;
 
@@ -225,9 +230,47 @@ public class Client{
                     System.out.println("Invalid Server Response");
                 else 
                 {
+                    //Init the receiver of the RTP packets, where the server said it sends them
+                    try {
+                        if (TCP) {
+                            //the packets come on the RTSP connection
+                            rtpReceiver = new RtpReceiver(RTP_CLOCK, decoder);
+                        }
+                        else if (multicastGroup != null) {
+                            //join the group, on the RTP port it gave
+                            rtpReceiver = new RtpReceiver(multicastGroup, multicastPort, RTP_CLOCK, decoder);
+                            //the RTCP packets of all the viewers go to the group too, on the next port
+                            MulticastSocket socket = new MulticastSocket(multicastPort + 1);
+                            socket.setTimeToLive(multicastTtl);
+                            socket.setNetworkInterface(RtpReceiver.networkInterface());
+                            socket.joinGroup(new InetSocketAddress(multicastGroup, multicastPort + 1), RtpReceiver.networkInterface());
+                            RTCPsocket = socket;
+                            rtcpDest = new InetSocketAddress(multicastGroup, multicastPort + 1);
+                        }
+                        else {
+                            //bind the RTP channel to receive RTP packets from the server, on port RTP_RCV_PORT
+                            rtpReceiver = new RtpReceiver(RTP_RCV_PORT, RTP_CLOCK, decoder);
+                            //UDP socket for the QoS RTCP packets, where the server sends its reports
+                            RTCPsocket = new DatagramSocket(RTP_RCV_PORT + 1);
+                            rtcpDest = new InetSocketAddress(ServerIPAddr, RTCP_RCV_PORT);
+                        }
+                    }
+                    catch (IOException se)
+                    {
+                        System.out.println("Socket exception: "+se);
+                        System.exit(0);
+                    }
+
                     //change RTSP state and print new state 
                     state = READY;
                     System.out.println("New RTSP state: READY");
+
+                    //receive the RTP packets, and the Sender Reports of the server
+                    if (NACK && !TCP)
+                        rtpReceiver.requestRetransmissions(rtcpSender);
+                    rtpReceiver.start();
+                    if (!TCP)
+                        rtcpSender.startReceive();
                 }
             }
             //else if state != INIT then do nothing
@@ -298,6 +341,9 @@ public class Client{
                     //stop the timer
                     timer.stop();
                     rtcpSender.stopSend();
+
+                    //no more packets: the frames held are not waiting for any
+                    rtpReceiver.flush();
                 }
             }
             //else if state != PLAYING then do nothing
@@ -329,6 +375,8 @@ public class Client{
                 //stop the timer
                 timer.stop();
                 rtcpSender.stopSend();
+                if (rtpReceiver != null)
+                    rtpReceiver.flush();
 
                 //exit
                 System.exit(0);
@@ -364,71 +412,52 @@ public class Client{
     class timerListener implements ActionListener {
 
         public void actionPerformed(ActionEvent e) {
-          
-            //Construct a DatagramPacket to receive data from the UDP socket
-            rcvdp = new DatagramPacket(buf, buf.length);
-
-            try {
-                //receive the DP from the socket, save time for stats
-                RTPsocket.receive(rcvdp);
 
-                double curTime = System.currentTimeMillis();
-                statTotalPlayTime += curTime - statStartTime; 
-                statStartTime = curTime;
+            double curTime = System.currentTimeMillis();
+            statTotalPlayTime += curTime - statStartTime;
+            statStartTime = curTime;
 
-                //create an RTPpacket object from the DP
-                RTPpacket rtp_packet = new RTPpacket(rcvdp.getData(), rcvdp.getLength());
-                int seqNb = rtp_packet.getsequencenumber();
+            //buffer the frames decoded since the last tick until they are due
+            FrameAssembler.Frame frame;
+            while ((frame = decoder.frames.poll()) != null)
+                jitterBuffer.add(frame, frame.timestamp, frame.arrival);
 
-                //this is the highest seq num received
+            //hand the frame due now to the render thread, if any
+            frame = jitterBuffer.poll(System.nanoTime() / 1000000);
+            if (frame != null)
+                canvas.show(frame.image);
 
-                //print important header fields of the RTP packet received: 
-                System.out.println("Got RTP packet with SeqNum # " + seqNb
-                                   + " TimeStamp " + rtp_packet.gettimestamp() + " ms, of type "
-                                   + rtp_packet.getpayloadtype());
-
-                //print header bitstream:
-                rtp_packet.printheader();
+            //compute stats and update the label in GUI
+            statDataRate = statTotalPlayTime == 0 ? 0 : (rtpReceiver.totalBytes / (statTotalPlayTime / 1000.0));
+            statFractionLost = rtpReceiver.expected == 0 ? 0 : (float)rtpReceiver.cumLost / rtpReceiver.expected;
+            updateStatsLabel();
+        }
+    }
 
-                //get the payload bitstream from the RTPpacket object
-                int payload_length = rtp_packet.getpayload_length();
-                byte [] payload = new byte[payload_length];
-                rtp_packet.getpayload(payload);
+    //------------------------------------
+    //Packets interleaved on the RTSP connection, from the InterleavedReader
+    //------------------------------------
+    class Interleaved implements InterleavedReader.Listener {
 
-                //compute stats and update the label in GUI
-                statExpRtpNb++;
-                if (seqNb > statHighSeqNb) {
-                    statHighSeqNb = seqNb;
-                }
-                if (statExpRtpNb != seqNb) {
-                    statCumLost++;
-                }
-                statDataRate = statTotalPlayTime == 0 ? 0 : (statTotalBytes / (statTotalPlayTime / 1000.0));
-                statFractionLost = (float)statCumLost / statHighSeqNb;
-                statTotalBytes += payload_length;
-                updateStatsLabel();
-
-                //get an Image object from the payload bitstream
-                Toolkit toolkit = Toolkit.getDefaultToolkit();
-                fsynch.addFrame(toolkit.createImage(payload, 0, payload_length), seqNb);
-
-                //display the image as an ImageIcon object
-                icon = new ImageIcon(fsynch.nextFrame());
-                iconLabel.setIcon(icon);
-            }
-            catch (InterruptedIOException iioe) {
-                System.out.println("Nothing to read");
-            }
-            catch (IOException ioe) {
-                System.out.println("Exception caught: "+ioe);
-            }
+        public void interleaved(int channel, byte[] data, int length) {
+            if (channel == RTP_CHANNEL && rtpReceiver != null)
+                rtpReceiver.packet(data, length);
+            else if (channel == RTP_CHANNEL + 1)
+                rtcpSender.received(data, length, System.nanoTime());
         }
     }
 
     //------------------------------------
-    // Send RTCP control packets for QoS feedback
+    // Send RTCP control packets for QoS feedback, and receive the Sender
+    // Reports they refer to. Viewing a multicast stream, the reports of
+    // all the viewers reach everyone: their interval then grows with the
+    // number of members seen, as RFC 3550 6.2 requires, so that RTCP keeps
+    // within 5% of the stream bitrate.
     //------------------------------------
-    class RtcpSender implements ActionListener {
+    class RtcpSender implements ActionListener, Runnable, RtpReceiver.Feedback {
+
+        static final int MEMBER_TIMEOUT = 5; // Intervals without RTCP packet after which a member is gone
+        static final int IP_UDP_HEADER_SIZE = 28;
 
         private Timer rtcpTimer;
         int interval;
@@ -436,9 +465,19 @@ public class Client{
         // Stats variables
         private int numPktsExpected;    // Number of RTP packets expected since the last RTCP packet
         private int numPktsLost;        // Number of RTP packets lost since the last RTCP packet
-        private int lastHighSeqNb;      // The last highest Seq number received
+        private int lastExpected;       // The last number of packets expected
         private int lastCumLost;        // The last cumulative packets lost
-        private float lastFractionLost; // The last fraction lost
+        private volatile float lastFractionLost; // The last fraction lost
+        private int ssrc;               // Identifies the client
+
+        // Last Sender Report received, guarded by this
+        private int lastSr;             // Middle 32 bits of its NTP timestamp, 0 if none
+        private long lastSrTime;        // nanoTime it was received at
+        private HashMap<Integer, Long> members = new HashMap<Integer, Long>(); // SSRC of the others seen in the group,
+                                                                              // and the nanoTime of their last packet
+        private double avgRtcpSize = IP_UDP_HEADER_SIZE + RTCPpacket.HEADER_SIZE + RTCPpacket.REPORT_BLOCK_SIZE + 4;
+                                        // Average size of the RTCP packets of the session, with IP and UDP headers
+        private boolean initial = true; // No report sent yet
 
         Random randomGenerator;         // For testing only
 
@@ -448,32 +487,105 @@ public class Client{
             rtcpTimer.setInitialDelay(0);
             rtcpTimer.setCoalesce(true);
             randomGenerator = new Random();
+            ssrc = randomGenerator.nextInt();
         }
 
+        // Receive the Sender Reports, until the socket is closed
         public void run() {
             System.out.println("RtcpSender Thread Running");
+            byte[] packet_bits = new byte[1500];
+            DatagramPacket dp = new DatagramPacket(packet_bits, packet_bits.length);
+            while (true) {
+                try {
+                    dp.setLength(packet_bits.length);
+                    RTCPsocket.receive(dp);
+                } catch (IOException ioe) {
+                    return;
+                }
+                received(dp.getData(), dp.getLength(), System.nanoTime());
+            }
+        }
+
+        // An RTCP packet arrived at now, from the socket or interleaved
+        synchronized void received(byte[] data, int length, long now) {
+            RTCPpacket rtcp_packet = new RTCPpacket(data, length);
+            if (rtcp_packet.Ssrc != ssrc) {
+                members.put(rtcp_packet.Ssrc, now);
+                avgRtcpSize += (length + IP_UDP_HEADER_SIZE - avgRtcpSize) / 16;
+            }
+            if (rtcp_packet.PayloadType == RTCPpacket.SR) {
+                lastSr = RTCPpacket.compact(rtcp_packet.ntpTimestamp);
+                lastSrTime = now;
+            }
         }
 
         public void actionPerformed(ActionEvent e) {
 
             // Calculate the stats for this period
-            numPktsExpected = statHighSeqNb - lastHighSeqNb;
-            numPktsLost = statCumLost - lastCumLost;
-            lastFractionLost = numPktsExpected == 0 ? 0f : (float)numPktsLost / numPktsExpected;
-            lastHighSeqNb = statHighSeqNb;
-            lastCumLost = statCumLost;
+            int highSeqNb = rtpReceiver.highSeqNb;
+            int expected = rtpReceiver.expected;
+            int cumLost = rtpReceiver.cumLost;
+            numPktsExpected = expected - lastExpected;
+            numPktsLost = cumLost - lastCumLost;
+            lastFractionLost = numPktsExpected <= 0 || numPktsLost <= 0 ? 0f : (float)numPktsLost / numPktsExpected;
+            lastExpected = expected;
+            lastCumLost = cumLost;
 
             //To test lost feedback on lost packets
             // lastFractionLost = randomGenerator.nextInt(10)/10.0f;
 
-            RTCPpacket rtcp_packet = new RTCPpacket(lastFractionLost, statCumLost, statHighSeqNb);
+            // Last SR, and the delay since it in 1/65536 s
+            int lsr, dlsr;
+            synchronized (this) {
+                lsr = lastSr;
+                dlsr = lsr == 0 ? 0 : (int)((System.nanoTime() - lastSrTime) * 65536 / 1000000000L);
+            }
+
+            RTCPpacket rtcp_packet = new RTCPpacket(ssrc, rtpReceiver.ssrc, lastFractionLost, cumLost, highSeqNb,
+                                                    (int)rtpReceiver.jitter, lsr, dlsr);
             int packet_length = rtcp_packet.getlength();
             byte[] packet_bits = new byte[packet_length];
             rtcp_packet.getpacket(packet_bits);
+            send(packet_bits, packet_length);
 
+            if (multicastGroup != null)
+                reschedule(packet_length);
+        }
+
+        // Ask the server for packets lost: a Generic NACK, after a Receiver
+        // Report as a compound packet must start with, on the counters of
+        // the last interval (RFC 4585 3.5); called on the thread receiving
+        // the packets
+        public void nack(int sourceSsrc, int[] seqs, int count) {
+            int lsr, dlsr;
+            synchronized (this) {
+                lsr = lastSr;
+                dlsr = lsr == 0 ? 0 : (int)((System.nanoTime() - lastSrTime) * 65536 / 1000000000L);
+            }
+            RTCPpacket report = new RTCPpacket(ssrc, sourceSsrc, lastFractionLost, rtpReceiver.cumLost,
+                                               rtpReceiver.highSeqNb, (int)rtpReceiver.jitter, lsr, dlsr);
+            RTCPpacket nack = new RTCPpacket(ssrc, sourceSsrc, seqs, count);
+            byte[] packet_bits = new byte[report.getlength() + nack.getlength()];
+            int packet_length = report.getpacket(packet_bits);
+            byte[] nack_bits = new byte[nack.getlength()];
+            nack.getpacket(nack_bits);
+            System.arraycopy(nack_bits, 0, packet_bits, packet_length, nack_bits.length);
+            send(packet_bits, packet_bits.length);
+        }
+
+        // Send an RTCP packet to the server
+        private void send(byte[] packet_bits, int packet_length) {
             try {
-                DatagramPacket dp = new DatagramPacket(packet_bits, packet_length, ServerIPAddr, RTCP_RCV_PORT);
-                RTCPsocket.send(dp);
+                if (TCP) {
+                    //framed on the RTSP connection, between the requests sent from this thread too
+                    RTSPOutputStream.write(new byte[] { '$', (byte)(RTP_CHANNEL + 1), (byte)(packet_length >> 8), (byte)packet_length });
+                    RTSPOutputStream.write(packet_bits, 0, packet_length);
+                    RTSPOutputStream.flush();
+                }
+                else {
+                    DatagramPacket dp = new DatagramPacket(packet_bits, packet_length, rtcpDest);
+                    RTCPsocket.send(dp);
+                }
             } catch (InterruptedIOException iioe) {
                 System.out.println("Nothing to read");
             } catch (IOException ioe) {
@@ -481,6 +593,23 @@ public class Client{
             }
         }
 
+        // Set the delay to the next report from the members seen lately
+        private synchronized void reschedule(int packet_length) {
+            avgRtcpSize += (packet_length + IP_UDP_HEADER_SIZE - avgRtcpSize) / 16;
+
+            long now = System.nanoTime();
+            long timeout = (long)MEMBER_TIMEOUT * rtcpTimer.getDelay() * 1000000L;
+            for (Iterator<Long> it = members.values().iterator(); it.hasNext(); )
+                if (now - it.next() > timeout)
+                    it.remove();
+
+            // the server is the one sender; 5% of the bitrate received goes to RTCP
+            double seconds = RTCPpacket.interval(members.size() + 1, 1, false, 0.05 * statDataRate,
+                                                 avgRtcpSize, initial, randomGenerator.nextDouble());
+            initial = false;
+            rtcpTimer.setDelay((int)(seconds * 1000));
+        }
+
         // Start sending RTCP packets
         public void startSend() {
             rtcpTimer.start();
@@ -490,45 +619,12 @@ public class Client{
         public void stopSend() {
             rtcpTimer.stop();
         }
-    }
-
-    //------------------------------------
-    //Synchronize frames
-    //------------------------------------
-    class FrameSynchronizer {
-
-        private ArrayDeque<Image> queue;
-        private int bufSize;
-        private int curSeqNb;
-        private Image lastImage;
-
-        public FrameSynchronizer(int bsize) {
-            curSeqNb = 1;
-            bufSize = bsize;
-            queue = new ArrayDeque<Image>(bufSize);
-        }
-
-        //synchronize frames based on their sequence number
-        public void addFrame(Image image, int seqNum) {
-            if (seqNum < curSeqNb) {
-                queue.add(lastImage);
-            }
-            else if (seqNum > curSeqNb) {
-                for (int i = curSeqNb; i < seqNum; i++) {
-                    queue.add(lastImage);
-                }
-                queue.add(image);
-            }
-            else {
-                queue.add(image);
-            }
-        }
 
-        //get the next synchronized frame
-        public Image nextFrame() {
-            curSeqNb++;
-            lastImage = queue.peekLast();
-            return queue.remove();
+        // Start receiving the Sender Reports
+        public void startReceive() {
+            Thread t = new Thread(this, "rtcp");
+            t.setDaemon(true);
+            t.start();
         }
     }
 
@@ -540,37 +636,25 @@ public class Client{
         int reply_code = 0;
 
         try {
-            //parse status line and extract the reply_code:
-            String StatusLine = RTSPBufferedReader.readLine();
+            //read up to the end of the response, whatever its headers
+            while (RTSPParser.parse(RTSPBuffer) != RtspParser.MESSAGE) {
+                int n = RTSPInputStream.read(RTSPBuffer.array());
+                if (n < 0)
+                    throw new EOFException("Connection closed by the server");
+                RTSPBuffer.position(0).limit(n);
+            }
             System.out.println("RTSP Client - Received from Server:");
-            System.out.println(StatusLine);
-          
-            StringTokenizer tokens = new StringTokenizer(StatusLine);
-            tokens.nextToken(); //skip over the RTSP version
-            reply_code = Integer.parseInt(tokens.nextToken());
-            
-            //if reply code is OK get and print the 2 other lines
-            if (reply_code == 200) {
-                String SeqNumLine = RTSPBufferedReader.readLine();
-                System.out.println(SeqNumLine);
-                
-                String SessionLine = RTSPBufferedReader.readLine();
-                System.out.println(SessionLine);
-
-                tokens = new StringTokenizer(SessionLine);
-                String temp = tokens.nextToken();
-                //if state == INIT gets the Session Id from the SessionLine
-                if (state == INIT && temp.compareTo("Session:") == 0) {
-                    RTSPid = Integer.parseInt(tokens.nextToken());
-                }
-                else if (temp.compareTo("Content-Base:") == 0) {
-                    // Get the DESCRIBE lines
-                    String newLine;
-                    for (int i = 0; i < 6; i++) {
-                        newLine = RTSPBufferedReader.readLine();
-                        System.out.println(newLine);
-                    }
-                }
+            System.out.println(RTSPParser);
+
+            reply_code = RTSPParser.status();
+
+            //if state == INIT gets the Session Id from the Session header
+            if (reply_code == 200 && state == INIT && RTSPParser.header("Session") >= 0) {
+                RTSPid = RTSPParser.intValue("Session", 0);
+
+                //asked for multicast or TCP, the server says where the stream goes
+                if (MULTICAST || TCP)
+                    parse_transport();
             }
         } catch(Exception ex) {
             System.out.println("Exception caught: "+ex);
@@ -580,10 +664,24 @@ public class Client{
         return(reply_code);
     }
 
+    //------------------------------------
+    //Parse the Transport header of a SETUP response: the group and ports
+    //of a multicast stream; multicastGroup stays null for unicast
+    //------------------------------------
+    private void parse_transport() throws IOException {
+        String destination = RTSPParser.param("Transport", "destination");
+        multicastPort = RTSPParser.intParam("Transport", "port", multicastPort);
+        multicastTtl = RTSPParser.intParam("Transport", "ttl", multicastTtl);
+        if (RTSPParser.hasParam("Transport", "multicast") && destination != null)
+            multicastGroup = InetAddress.getByName(destination);
+    }
+
     private void updateStatsLabel() {
         DecimalFormat formatter = new DecimalFormat("###,###.##");
-        statLabel1.setText("Total Bytes Received: " + statTotalBytes);
-        statLabel2.setText("Packet Lost Rate: " + formatter.format(statFractionLost));
+        statLabel1.setText("Total Bytes Received: " + rtpReceiver.totalBytes);
+        statLabel2.setText("Packet Lost Rate: " + formatter.format(statFractionLost)
+                           + ", Recovered: " + (rtpReceiver.fec.recovered + rtpReceiver.late)
+                           + ", Playout Delay: " + jitterBuffer.targetDelay() + " ms");
         statLabel3.setText("Data Rate: " + formatter.format(statDataRate) + " bytes/s");
     }
 
@@ -606,7 +704,12 @@ public class Client{
             //Transport: line advertising to the server the port used to receive 
             //the RTP packets RTP_RCV_PORT
             if (request_type == "SETUP") {
-                RTSPBufferedWriter.write("Transport: RTP/UDP; client_port= " + RTP_RCV_PORT + CRLF);
+                if (TCP)
+                    RTSPBufferedWriter.write("Transport: RTP/AVP/TCP;interleaved=" + RTP_CHANNEL + "-" + (RTP_CHANNEL + 1) + CRLF);
+                else if (MULTICAST)
+                    RTSPBufferedWriter.write("Transport: RTP/AVP;multicast;client_port= " + RTP_RCV_PORT + "-" + (RTP_RCV_PORT + 1) + CRLF);
+                else
+                    RTSPBufferedWriter.write("Transport: RTP/UDP; client_port= " + RTP_RCV_PORT + "-" + (RTP_RCV_PORT + 1) + CRLF);
             }
             else if (request_type == "DESCRIBE") {
                 RTSPBufferedWriter.write("Accept: application/sdp" + CRLF);
@@ -615,6 +718,9 @@ public class Client{
                 //otherwise, write the Session line from the RTSPid field
                 RTSPBufferedWriter.write("Session: " + RTSPid + CRLF);
             }
+
+            //an empty line ends the request
+            RTSPBufferedWriter.write(CRLF);
             RTSPBufferedWriter.flush();
         } catch(Exception ex) {
             System.out.println("Exception caught: "+ex);
@@ -0,0 +1,113 @@
+//FecDecoder
+
+//------------------------------------
+//Recovery of the packets lost, from the parity packets of the server
+//(RFC 5109): each one is the XOR of a group of media packets, given by
+//its mask. With a single packet of the group missing, the XOR of the
+//parity and of the others is that packet, header fields included.
+//The media packets of the last groups are kept for this, by sequence
+//number. The parity packets are a stream of their own, with an SSRC of
+//their own: the packets recovered take that of the media packets.
+//Runs on the thread receiving the packets, before reassembly.
+//------------------------------------
+public class FecDecoder {
+
+    static int PAYLOAD_TYPE = Integer.getInteger("rtp.fec.pt", 127); //of the parity packets
+    final static int FEC_HEADER_SIZE = 10;
+    final static int LEVEL_HEADER_SIZE = 4;
+    static int WINDOW = 256;            //media packets kept, a power of 2
+
+    private RTPpacket[] window = new RTPpacket[WINDOW];
+    private int ssrc;                   //of the media packets
+
+    public volatile int recovered;      //packets recovered
+    public volatile int parityPackets;  //parity packets received
+
+    //------------------------------------
+    //Keep a media packet received; false if it was received or recovered
+    //already, retransmitted or duplicated on the way
+    //------------------------------------
+    public boolean media(RTPpacket rtp_packet) {
+        int i = rtp_packet.getsequencenumber() & (WINDOW - 1);
+        RTPpacket kept = window[i];
+        if (kept != null && kept.getsequencenumber() == rtp_packet.getsequencenumber())
+            return false;
+        window[i] = rtp_packet;
+        ssrc = rtp_packet.getssrc();
+        return true;
+    }
+
+    //------------------------------------
+    //Handle a parity packet: the media packet it recovers, or null
+    //------------------------------------
+    public RTPpacket parity(RTPpacket fec) {
+        parityPackets++;
+        byte[] p = fec.payload;
+        if (fec.getpayload_length() < FEC_HEADER_SIZE + LEVEL_HEADER_SIZE || (p[0] & 0xC0) != 0)
+            return null; //E or L set: not what the server sends
+        int baseSeq = (p[2] & 0xFF) << 8 | p[3] & 0xFF;
+        int protLength = (p[10] & 0xFF) << 8 | p[11] & 0xFF;
+        int mask = (p[12] & 0xFF) << 8 | p[13] & 0xFF;
+        int dataOffset = FEC_HEADER_SIZE + LEVEL_HEADER_SIZE;
+        if (dataOffset + protLength > fec.getpayload_length())
+            return null;
+
+        //the one packet of the group missing, if only one is
+        int missing = -1;
+        for (int bit = 0; bit < 16; bit++) {
+            if ((mask & 0x8000 >>> bit) == 0)
+                continue;
+            int seq = (baseSeq + bit) & 0xFFFF;
+            RTPpacket kept = window[seq & (WINDOW - 1)];
+            if (kept == null || kept.getsequencenumber() != seq) {
+                if (missing >= 0)
+                    return null;
+                missing = seq;
+            }
+        }
+        if (missing < 0)
+            return null;
+
+        //XOR the recovery fields and the data of the others into the parity
+        int bits = (p[0] & 0xFF) << 8 | p[1] & 0xFF;
+        int timestamp = (p[4] & 0xFF) << 24 | (p[5] & 0xFF) << 16 | (p[6] & 0xFF) << 8 | p[7] & 0xFF;
+        int length = (p[8] & 0xFF) << 8 | p[9] & 0xFF;
+        byte[] data = new byte[RTPpacket.HEADER_SIZE + protLength];
+        System.arraycopy(p, dataOffset, data, RTPpacket.HEADER_SIZE, protLength);
+        for (int bit = 0; bit < 16; bit++) {
+            int seq = (baseSeq + bit) & 0xFFFF;
+            if ((mask & 0x8000 >>> bit) == 0 || seq == missing)
+                continue;
+            RTPpacket kept = window[seq & (WINDOW - 1)];
+            byte[] h = kept.header;
+            bits ^= (h[0] & 0xFF) << 8 | h[1] & 0xFF;
+            timestamp ^= kept.gettimestamp();
+            int n = Math.min(kept.getpayload_length(), protLength);
+            length ^= kept.getpayload_length();
+            for (int j = 0; j < n; j++)
+                data[RTPpacket.HEADER_SIZE + j] ^= kept.payload[j];
+        }
+        length &= 0xFFFF;
+        if (length > protLength)
+            return null;
+
+        //the RTP header of the packet
+        data[0] = (byte)(0x80 | bits >> 8 & 0x3F);
+        data[1] = (byte)bits;
+        data[2] = (byte)(missing >> 8);
+        data[3] = (byte)missing;
+        data[4] = (byte)(timestamp >> 24);
+        data[5] = (byte)(timestamp >> 16);
+        data[6] = (byte)(timestamp >> 8);
+        data[7] = (byte)timestamp;
+        data[8] = (byte)(ssrc >> 24);   //SSRC of the media stream
+        data[9] = (byte)(ssrc >> 16);
+        data[10] = (byte)(ssrc >> 8);
+        data[11] = (byte)ssrc;
+        RTPpacket rtp_packet = new RTPpacket(data, RTPpacket.HEADER_SIZE + length);
+
+        window[missing & (WINDOW - 1)] = rtp_packet;
+        recovered++;
+        return rtp_packet;
+    }
+}
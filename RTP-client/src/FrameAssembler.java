@@ -0,0 +1,192 @@
+//FrameAssembler
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+//------------------------------------
+//Rebuild the JPEG frames sent as RFC 2435 fragments. Fragments are
+//grouped by RTP timestamp; a frame is handed out once the fragment with
+//the marker bit has arrived, or when it is pushed out by newer frames.
+//A frame missing some fragments is still handed out, with the missing
+//bytes left as zeros, as long as its first fragment (the tables) arrived.
+//With a hold time, while retransmissions are asked for, a frame missing
+//fragments waits for them up to that time, and the newer frames after it.
+//The time is checked as fragments arrive, and by release() in between:
+//a frame held is handed out once it ran out, whether more come or not.
+//------------------------------------
+public class FrameAssembler {
+
+    static int MAX_PENDING = 4;         //frames being assembled at once
+    static int MAX_FRAME_SIZE = 1 << 20; //largest scan accepted
+
+    int hold;                           //ms a frame missing fragments waits for them, 0 for not at all
+
+    //------------------------------------
+    //A frame handed out: its RTP timestamp and JPEG bitstream
+    //------------------------------------
+    public static class Frame {
+        public int timestamp;
+        public byte[] jpeg;
+        public boolean partial;     //some fragments were missing
+        public long arrival;        //ms, when its last fragment arrived
+        public BufferedImage image; //decoded, once it went through the FrameDecoder
+    }
+
+    //------------------------------------
+    //A frame being assembled
+    //------------------------------------
+    class Partial {
+        int timestamp;
+        RtpJpeg first;          //headers of the first fragment, null until it arrives
+        byte[] scan = new byte[16384];
+        int received;           //scan bytes received
+        int highest;            //end of the furthest fragment received
+        int length = -1;        //scan length, known once the last fragment arrived
+        long started;           //ms, when its first fragment arrived
+        long last;              //ms, when the last one did
+    }
+
+    private LinkedHashMap<Integer, Partial> pending = new LinkedHashMap<Integer, Partial>();
+    private int lastTimestamp;      //timestamp of the last frame handed out
+    private boolean started;
+
+    public int completeFrames;      //frames handed out with all their fragments
+    public int partialFrames;       //frames handed out with missing fragments
+    public int droppedFrames;       //frames lost because their first fragment was lost
+
+    //------------------------------------
+    //Add the fragment carried by rtp_packet, arrived at now (ms); returns
+    //the list of frames it completed (possibly empty), oldest first
+    //------------------------------------
+    public List<Frame> add(RTPpacket rtp_packet, long now) {
+        List<Frame> done = new ArrayList<Frame>(1);
+        int timestamp = rtp_packet.gettimestamp();
+
+        //too late: that frame was already handed out
+        if (started && timestamp - lastTimestamp <= 0 && !pending.containsKey(timestamp))
+            return done;
+
+        byte[] payload = rtp_packet.payload;
+        int payload_size = rtp_packet.getpayload_length();
+        if (payload_size < RtpJpeg.HEADER_SIZE)
+            return done;
+        RtpJpeg hdr = new RtpJpeg(payload, payload_size);
+
+        Partial f = pending.get(timestamp);
+        if (f == null) {
+            //make room: the oldest frame will not be completed anymore
+            while (pending.size() >= MAX_PENDING)
+                emit(pending.keySet().iterator().next(), done);
+            f = new Partial();
+            f.timestamp = timestamp;
+            f.started = now;
+            pending.put(timestamp, f);
+        }
+
+        //copy the fragment at its offset
+        int data_length = payload_size - hdr.header_size;
+        int end = hdr.FragmentOffset + data_length;
+        if (data_length < 0 || end > MAX_FRAME_SIZE)
+            return done;
+        if (end > f.scan.length)
+            f.scan = Arrays.copyOf(f.scan, Math.max(end, 2 * f.scan.length));
+        System.arraycopy(payload, hdr.header_size, f.scan, hdr.FragmentOffset, data_length);
+        f.last = now;
+        f.received += data_length;
+        f.highest = Math.max(f.highest, end);
+        if (hdr.FragmentOffset == 0)
+            f.first = hdr;
+        if (rtp_packet.getmarker() == 1)
+            f.length = end;
+
+        //with the last fragment in, the frame is as complete as it will be,
+        //unless the missing ones are asked for again
+        if (hold > 0)
+            release(now, done);
+        else if (f.length >= 0)
+            emit(timestamp, done);
+        return done;
+    }
+
+    //------------------------------------
+    //The frames held that ran out of time at now (ms), oldest first,
+    //without another fragment arriving
+    //------------------------------------
+    public List<Frame> release(long now) {
+        List<Frame> done = new ArrayList<Frame>(1);
+        if (hold > 0)
+            release(now, done);
+        return done;
+    }
+
+    //------------------------------------
+    //All the frames being assembled, as complete as they are, when no more
+    //fragments will come: the stream was paused or torn down
+    //------------------------------------
+    public List<Frame> flush() {
+        List<Frame> done = new ArrayList<Frame>(pending.size());
+        while (!pending.isEmpty())
+            emit(pending.keySet().iterator().next(), done);
+        return done;
+    }
+
+    //------------------------------------
+    //Hand out the frames in order, as long as the oldest one is complete
+    //or has waited for its missing fragments long enough
+    //------------------------------------
+    private void release(long now, List<Frame> done) {
+        while (!pending.isEmpty()) {
+            Partial f = pending.values().iterator().next();
+            boolean complete = f.length >= 0 && f.received >= f.length;
+            if (!complete && now - f.started < hold)
+                return;
+            emit(f.timestamp, done);
+        }
+    }
+
+    //------------------------------------
+    //Hand out the frame with this timestamp, and the older ones before it
+    //------------------------------------
+    private void emit(int timestamp, List<Frame> done) {
+        Iterator<Map.Entry<Integer, Partial>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Partial f = it.next().getValue();
+            it.remove();
+            Frame frame = build(f);
+            if (frame != null)
+                done.add(frame);
+            lastTimestamp = f.timestamp;
+            started = true;
+            if (f.timestamp == timestamp)
+                return;
+        }
+    }
+
+    //------------------------------------
+    //Full JPEG bitstream: rebuilt headers, scan, EOI
+    //------------------------------------
+    private Frame build(Partial f) {
+        if (f.first == null) {
+            droppedFrames++;
+            return null;
+        }
+        Frame frame = new Frame();
+        frame.timestamp = f.timestamp;
+        frame.arrival = f.last;
+        int length = f.length >= 0 ? f.length : f.highest;
+        frame.partial = f.length < 0 || f.received < length;
+        if (frame.partial)
+            partialFrames++;
+        else
+            completeFrames++;
+
+        byte[] jpeg = new byte[RtpJpeg.MAX_HEADERS_SIZE + length + 2];
+        int p = f.first.makeheaders(jpeg);
+        System.arraycopy(f.scan, 0, jpeg, p, length);
+        p += length;
+        jpeg[p++] = (byte)0xFF;     //EOI
+        jpeg[p++] = (byte)0xD9;
+        frame.jpeg = Arrays.copyOf(jpeg, p);
+        return frame;
+    }
+}
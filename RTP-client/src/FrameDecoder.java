@@ -0,0 +1,109 @@
+//FrameDecoder
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+//------------------------------------
+//Decode stage of the player: worker threads decode the frames the
+//RtpReceiver completes into BufferedImages, ready to be drawn. Each worker
+//has its own ImageReader, and decodes into images taken back from the
+//frames that are done with (recycle), so the pixel buffers are reused
+//instead of allocated per frame. Decoded frames are handed to the player
+//through a lock-free queue. When decoding falls behind, the oldest frame
+//waiting is dropped.
+//------------------------------------
+public class FrameDecoder {
+
+    static int NB_THREADS = Integer.getInteger("rtp.decoders",
+                                               Math.min(2, Runtime.getRuntime().availableProcessors()));
+    static int QUEUE_SIZE = 8;  //frames waiting to be decoded; older ones are dropped past it
+
+    private ThreadPoolExecutor pool;
+    private ConcurrentLinkedQueue<BufferedImage> free = new ConcurrentLinkedQueue<BufferedImage>();
+
+    //frames decoded, with their image set, oldest first
+    public final ConcurrentLinkedQueue<FrameAssembler.Frame> frames = new ConcurrentLinkedQueue<FrameAssembler.Frame>();
+
+    public volatile int droppedFrames; //not decoded in time
+    public volatile int failedFrames;  //could not be decoded
+
+    //one JPEG reader per worker
+    private ThreadLocal<ImageReader> reader = new ThreadLocal<ImageReader>() {
+        protected ImageReader initialValue() {
+            return ImageIO.getImageReadersByFormatName("jpeg").next();
+        }
+    };
+
+    public FrameDecoder() {
+        pool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                      new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        },
+                                      new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                //queue full: drop the oldest frame waiting for the new one
+                executor.getQueue().poll();
+                droppedFrames++;
+                executor.getQueue().offer(r);
+            }
+        });
+    }
+
+    //------------------------------------
+    //Decode a frame in the background
+    //------------------------------------
+    public void decode(final FrameAssembler.Frame frame) {
+        pool.execute(new Runnable() {
+            public void run() {
+                frame.image = decodeImage(frame.jpeg);
+                if (frame.image == null) {
+                    failedFrames++;
+                    return;
+                }
+                frame.jpeg = null;
+                frames.offer(frame);
+            }
+        });
+    }
+
+    //------------------------------------
+    //Give back the image of a frame nobody draws any more
+    //------------------------------------
+    public void recycle(BufferedImage image) {
+        if (image != null && free.size() < QUEUE_SIZE + NB_THREADS)
+            free.offer(image);
+    }
+
+    //------------------------------------
+    //Decode a JPEG bitstream, into a recycled image if one fits; null on error
+    //------------------------------------
+    private BufferedImage decodeImage(byte[] jpeg) {
+        ImageReader r = reader.get();
+        try {
+            r.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg)), true, true);
+            ImageReadParam param = r.getDefaultReadParam();
+            ImageTypeSpecifier type = r.getImageTypes(0).next();
+            int width = r.getWidth(0);
+            int height = r.getHeight(0);
+
+            BufferedImage image = free.poll();
+            if (image == null || image.getWidth() != width || image.getHeight() != height
+                || image.getType() != type.getBufferedImageType())
+                image = type.createBufferedImage(width, height);
+            param.setDestination(image);
+            return r.read(0, param);
+        } catch (IOException ioe) {
+            return null;
+        } finally {
+            r.setInput(null);
+        }
+    }
+}
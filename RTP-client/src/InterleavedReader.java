@@ -0,0 +1,79 @@
+//InterleavedReader
+
+import java.io.*;
+
+//------------------------------------
+//Reader of an RTSP connection the server also sends RTP and RTCP on
+//(RFC 2326 10.12). A thread of its own splits what arrives: each packet,
+//framed by '$', its channel number and its 16 bit length, goes to the
+//Listener; the bytes of the responses go on to input(), read like the
+//connection itself would be.
+//------------------------------------
+public class InterleavedReader implements Runnable {
+
+    static int PIPE_SIZE = 1 << 16;     //bytes of responses not read yet
+
+    //------------------------------------
+    //Where the interleaved packets go
+    //------------------------------------
+    public interface Listener {
+        void interleaved(int channel, byte[] data, int length);
+    }
+
+    private DataInputStream in;
+    private Listener listener;
+    private PipedOutputStream responses;
+    private PipedInputStream input;
+    private byte[] buf = new byte[65536]; //the largest packet
+
+    public InterleavedReader(InputStream in, Listener listener) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.listener = listener;
+        input = new PipedInputStream(PIPE_SIZE);
+        responses = new PipedOutputStream(input);
+    }
+
+    //------------------------------------
+    //The bytes of the responses
+    //------------------------------------
+    public InputStream input() {
+        return input;
+    }
+
+    //------------------------------------
+    //Start reading, on a thread of its own
+    //------------------------------------
+    public void start() {
+        Thread t = new Thread(this, "rtsp");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void run() {
+        try {
+            boolean lineStart = true;
+            int c;
+            while ((c = in.read()) >= 0) {
+                //packets only start between the lines of the responses
+                if (lineStart && c == '$') {
+                    int channel = in.readUnsignedByte();
+                    int length = in.readUnsignedShort();
+                    in.readFully(buf, 0, length);
+                    listener.interleaved(channel, buf, length);
+                    continue;
+                }
+                responses.write(c);
+                lineStart = c == '\n';
+                if (lineStart)
+                    responses.flush();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Exception caught: "+ioe);
+        } finally {
+            try {
+                responses.close();
+            } catch (IOException ioe) {
+            }
+        }
+    }
+}
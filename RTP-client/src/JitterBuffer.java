@@ -0,0 +1,162 @@
+//JitterBuffer
+
+import java.util.*;
+
+//------------------------------------
+//Adaptive playout buffer of the frames of a stream. Each frame is
+//played at its RTP timestamp, converted to local time, plus:
+//  - the base transit: the lowest transit time (arrival less timestamp)
+//    seen lately, which absorbs the offset between the two clocks,
+//  - the target delay: JITTER_FACTOR times the interarrival jitter of
+//    the frames, within MIN_DELAY and MAX_DELAY.
+//The playout latency therefore follows the network: it grows with the
+//jitter and shrinks back when it calms down. A frame arriving after its
+//playout time is dropped, and at most MAX_FRAMES frames are held; each
+//frame dropped or passed over goes through dropped().
+//------------------------------------
+public class JitterBuffer<T> {
+
+    static int MIN_DELAY = 20;      //ms, about the period the buffer is polled at
+    static int MAX_DELAY = 1000;    //ms
+    static float JITTER_FACTOR = 4;
+    static int MAX_FRAMES = 50;
+    static double BASE_DRIFT = 0.002; //how fast the base transit rises back, per frame
+
+    //------------------------------------
+    //A frame held, with its timestamp
+    //------------------------------------
+    static class Entry<T> {
+        int timestamp;
+        long extended;  //the timestamp counted from the first one, without wrapping
+        T frame;
+
+        Entry(int timestamp, long extended, T frame) {
+            this.timestamp = timestamp;
+            this.extended = extended;
+            this.frame = frame;
+        }
+    }
+
+    private ArrayDeque<Entry<T>> queue = new ArrayDeque<Entry<T>>(); //by timestamp
+    private int clock;              //RTP timestamp units per second
+    private boolean started;
+    private int lastTimestamp;      //highest timestamp added
+    private long lastExtended;      //and its extended value
+    private double baseTransit;     //ms
+    private double lastTransit;
+    private double jitter;          //ms, smoothed as in RFC 3550
+    private int lastPlayed;         //timestamp of the last frame played
+
+    public int lateFrames;          //dropped because they arrived after their playout time
+    public int overflowFrames;      //dropped because the buffer was full
+    public int skippedFrames;       //passed over because a newer frame was due too
+
+    public JitterBuffer(int clock) {
+        this.clock = clock;
+    }
+
+    //------------------------------------
+    //Add a frame of a timestamp, arrived at now (ms); false if it is dropped
+    //------------------------------------
+    public boolean add(T frame, int timestamp, long now) {
+        if (!started) {
+            started = true;
+            lastTimestamp = timestamp;
+            baseTransit = lastTransit = now;
+            lastPlayed = timestamp - 1;
+        }
+
+        //timestamps wrap after 2^32 units, about 13 hours at 90 kHz: extend
+        //them from the highest one, the way RTP sequence numbers are
+        long extended = lastExtended + (timestamp - lastTimestamp);
+        if (timestamp - lastTimestamp > 0) {
+            lastTimestamp = timestamp;
+            lastExtended = extended;
+        }
+
+        //transit time, and its variation from the previous frame
+        double transit = now - millis(extended);
+        jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+        lastTransit = transit;
+        if (transit < baseTransit)
+            baseTransit = transit;
+        else
+            baseTransit += (transit - baseTransit) * BASE_DRIFT; //forget old minimums slowly
+
+        //too late to be played
+        if (timestamp - lastPlayed <= 0 || playoutTime(extended) < now) {
+            lateFrames++;
+            dropped(frame);
+            return false;
+        }
+
+        //insert in timestamp order, from the newest end as frames mostly come in order
+        Entry<T> entry = new Entry<T>(timestamp, extended, frame);
+        if (queue.isEmpty() || timestamp - queue.peekLast().timestamp > 0) {
+            queue.addLast(entry);
+        }
+        else {
+            ArrayDeque<Entry<T>> newer = new ArrayDeque<Entry<T>>();
+            while (!queue.isEmpty() && queue.peekLast().timestamp - timestamp >= 0)
+                newer.addFirst(queue.pollLast());
+            if (!newer.isEmpty() && newer.peekFirst().timestamp == timestamp) {
+                queue.addAll(newer);
+                dropped(frame);
+                return false; //already held
+            }
+            queue.addLast(entry);
+            queue.addAll(newer);
+        }
+
+        if (queue.size() > MAX_FRAMES) {
+            dropped(queue.pollFirst().frame);
+            overflowFrames++;
+        }
+        return true;
+    }
+
+    //------------------------------------
+    //The frame to show at now (ms): the newest one whose playout time has
+    //come, or null if none has since the last call
+    //------------------------------------
+    public T poll(long now) {
+        Entry<T> due = null;
+        while (!queue.isEmpty() && playoutTime(queue.peekFirst().extended) <= now) {
+            if (due != null) {
+                skippedFrames++;
+                dropped(due.frame);
+            }
+            due = queue.pollFirst();
+        }
+        if (due == null)
+            return null;
+        lastPlayed = due.timestamp;
+        return due.frame;
+    }
+
+    //------------------------------------
+    //A frame added will not be returned by poll(); override to reclaim it
+    //------------------------------------
+    protected void dropped(T frame) {
+    }
+
+    //------------------------------------
+    //Delay added to the lowest transit time before playout, ms
+    //------------------------------------
+    public int targetDelay() {
+        return (int)Math.max(MIN_DELAY, Math.min(MAX_DELAY, JITTER_FACTOR * jitter));
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private double playoutTime(long extended) {
+        return millis(extended) + baseTransit + targetDelay();
+    }
+
+    //extended timestamp in ms
+    private double millis(long extended) {
+        return extended * 1000.0 / clock;
+    }
+}
@@ -0,0 +1,77 @@
+//NackList
+
+//------------------------------------
+//The RTP packets missing from the stream received, to ask the server
+//for again in Generic NACKs (RFC 4585). A packet is asked for as soon as
+//a later one shows it missing, then again every RETRY ms until it
+//arrives, or until WAIT ms went by: its frame is handed out without it
+//then. Used by the thread receiving the packets only.
+//------------------------------------
+public class NackList {
+
+    static int WAIT = Integer.getInteger("rtp.nack.wait", 200);   //ms a frame missing packets waits for them
+    static int RETRY = Integer.getInteger("rtp.nack.retry", 60);  //ms between two requests for a packet
+    static int MAX_MISSING = 128;       //packets asked for at once; more are not asked for
+
+    private int[] seqs = new int[MAX_MISSING];
+    private long[] since = new long[MAX_MISSING];   //ms, when found missing
+    private long[] asked = new long[MAX_MISSING];   //ms, last asked for
+    private int count;
+
+    //------------------------------------
+    //A packet found missing at now
+    //------------------------------------
+    public void missing(int seq, long now) {
+        if (count == MAX_MISSING)
+            return;
+        seqs[count] = seq;
+        since[count] = now;
+        asked[count] = now - RETRY; //due at once
+        count++;
+    }
+
+    //------------------------------------
+    //A packet arrived late, or was recovered; false if it was not missing
+    //------------------------------------
+    public boolean arrived(int seq) {
+        for (int i = 0; i < count; i++)
+            if (seqs[i] == seq) {
+                remove(i);
+                return true;
+            }
+        return false;
+    }
+
+    //------------------------------------
+    //The packets to ask for at now, into out; returns their count
+    //------------------------------------
+    public int due(long now, int[] out) {
+        int n = 0;
+        for (int i = 0; i < count; ) {
+            if (now - since[i] >= WAIT) {
+                remove(i); //its frame went without it
+                continue;
+            }
+            if (now - asked[i] >= RETRY) {
+                asked[i] = now;
+                out[n++] = seqs[i];
+            }
+            i++;
+        }
+        return n;
+    }
+
+    //------------------------------------
+    //Forget all the packets missing
+    //------------------------------------
+    public void clear() {
+        count = 0;
+    }
+
+    private void remove(int i) {
+        count--;
+        seqs[i] = seqs[count];
+        since[i] = since[count];
+        asked[i] = asked[count];
+    }
+}
@@ -32,12 +32,19 @@ public class RTPpacket{
     //Constructor of an RTPpacket object from header fields and payload bitstream
     //--------------------------
     public RTPpacket(int PType, int Framenb, int Time, byte[] data, int data_length){
+        this(PType, Framenb, Time, 0, data, data_length);
+    }
+
+    //--------------------------
+    //Same, with the marker bit (set on the last packet of a video frame)
+    //--------------------------
+    public RTPpacket(int PType, int Framenb, int Time, int Mark, byte[] data, int data_length){
         //fill by default header fields:
         Version = 2;
         Padding = 0;
         Extension = 0;
         CC = 0;
-        Marker = 0;
+        Marker = Mark;
         Ssrc = 1337;    // Identifies the server
 
         //fill changing header fields:
@@ -105,9 +112,11 @@ public class RTPpacket{
 
             //interpret the changing fields of the header:
             Version = (header[0] & 0xFF) >>> 6;
+            Marker = (header[1] & 0xFF) >>> 7;
             PayloadType = header[1] & 0x7F;
             SequenceNumber = (header[3] & 0xFF) + ((header[2] & 0xFF) << 8);
             TimeStamp = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((header[4] & 0xFF) << 24);
+            Ssrc = (header[11] & 0xFF) + ((header[10] & 0xFF) << 8) + ((header[9] & 0xFF) << 16) + ((header[8] & 0xFF) << 24);
         }
     }
 
@@ -166,6 +175,13 @@ public class RTPpacket{
         return(SequenceNumber);
     }
 
+    //--------------------------
+    //getmarker
+    //--------------------------
+    public int getmarker() {
+        return(Marker);
+    }
+
     //--------------------------
     //getpayloadtype
     //--------------------------
@@ -173,6 +189,13 @@ public class RTPpacket{
         return(PayloadType);
     }
 
+    //--------------------------
+    //getssrc
+    //--------------------------
+    public int getssrc() {
+        return(Ssrc);
+    }
+
     //--------------------------
     //print headers without the SSRC
     //--------------------------
@@ -0,0 +1,276 @@
+//RtpReceiver
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+//------------------------------------
+//Receive path of the RTP packets: a thread blocked on the RTP channel
+//takes every datagram as soon as it arrives, into one reused buffer,
+//keeps the reception statistics and reassembles the frames. The frames
+//it completes are handed to the FrameDecoder. The packets lost that the
+//parity packets of the server recover are reassembled too, but still
+//count as lost in the statistics: the server adapts the parity to them.
+//With retransmissions requested, the packets found missing are asked for
+//in Generic NACKs, and the frames missing some wait for them a while: the
+//thread also wakes up every TICK ms without packets, to hand them out once
+//their time ran out and to ask again for the packets still missing.
+//The statistics are only written by that thread, and read by the others.
+//The stream is received either on a port of its own, or from a multicast
+//group that other viewers on the same host may have joined too, or over
+//TCP: the InterleavedReader then hands it the packets, on its own thread.
+//------------------------------------
+public class RtpReceiver implements Runnable {
+
+    static int RCV_BUFFER = 1 << 20;    //socket receive buffer, for the bursts of a frame
+    static int TICK = 20;               //ms the thread waits for a packet before checking the frames held
+    static int MAX_DROPOUT = 3000;      //largest forward jump of the sequence numbers taken as loss
+    static int MAX_MISORDER = 100;      //largest backward jump taken as reordering
+    static boolean LOG_PACKETS = Boolean.getBoolean("rtp.logpackets"); //print each packet received
+    static String MCAST_INTERFACE = System.getProperty("rtp.mcast.if"); //network interface name, else the first that fits
+
+    private DatagramChannel channel;    //null over TCP
+    private byte[] buf = new byte[65536]; //the largest datagram
+    private FrameAssembler assembler = new FrameAssembler();
+    FecDecoder fec = new FecDecoder(); //packets recovered from the parity packets
+    private NackList nacks;             //packets missing, null if not asked for again
+    private Feedback feedback;          //where the NACKs go
+    private int[] nackSeqs = new int[NackList.MAX_MISSING];
+    private FrameDecoder decoder;       //where the frames completed go
+    private int clock;                  //RTP timestamp units per second
+
+    //Statistics, with the sequence numbers extended past 16 bits (RFC 3550 A.1)
+    public volatile int totalBytes;     //Total number of payload bytes received
+    public volatile int expected;       //Number of packets expected: from the first to the highest
+    public volatile int cumLost;        //Number of packets lost: expected less received
+    public volatile int highSeqNb;      //Highest extended sequence number received
+    public volatile int ssrc;           //Ssrc of the stream received
+    public volatile int late;           //Number of packets received after being found missing
+    public volatile double jitter;      //Interarrival jitter, in RTP timestamp units
+    private int received;               //Number of packets received
+    private int baseSeq;                //First sequence number
+    private int maxSeq;                 //Highest sequence number, 16 bits
+    private int cycles;                 //Wraps of the 16 bit numbers, times 65536
+    private int badSeq = -1;            //Next sequence number expected after a large jump
+    private int lastTransit;            //Transit time of the last packet, in RTP timestamp units
+
+    //------------------------------------
+    //Where the packets to send again are asked for
+    //------------------------------------
+    public interface Feedback {
+        void nack(int sourceSsrc, int[] seqs, int count);
+    }
+
+    public RtpReceiver(int port, int clock, FrameDecoder decoder) throws IOException {
+        this.clock = clock;
+        this.decoder = decoder;
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(RCV_BUFFER);
+        channel.socket().bind(new InetSocketAddress(port));
+    }
+
+    public RtpReceiver(int clock, FrameDecoder decoder) {
+        this.clock = clock;
+        this.decoder = decoder;
+    }
+
+    public RtpReceiver(InetAddress group, int port, int clock, FrameDecoder decoder) throws IOException {
+        this.clock = clock;
+        this.decoder = decoder;
+        channel = DatagramChannel.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); //shared with the other viewers of the host
+        channel.socket().setReceiveBufferSize(RCV_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+        channel.join(group, networkInterface());
+    }
+
+    //------------------------------------
+    //Network interface multicast is received on
+    //------------------------------------
+    static NetworkInterface networkInterface() throws IOException {
+        if (MCAST_INTERFACE != null)
+            return NetworkInterface.getByName(MCAST_INTERFACE);
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces()))
+            if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback())
+                return ni;
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    //------------------------------------
+    //Ask for the packets missing again, through feedback
+    //------------------------------------
+    public void requestRetransmissions(Feedback feedback) {
+        this.feedback = feedback;
+        nacks = new NackList();
+        assembler.hold = NackList.WAIT;
+    }
+
+    //------------------------------------
+    //Start receiving, on a thread of its own
+    //------------------------------------
+    public void start() {
+        if (channel == null)
+            return; //packets passed by the InterleavedReader
+        Thread t = new Thread(this, "rtp");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void run() {
+        //through the socket of the channel, which can time out
+        DatagramSocket socket = channel.socket();
+        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        try {
+            socket.setSoTimeout(TICK);
+        } catch (SocketException se) {
+            System.out.println("Exception caught: "+se);
+        }
+        while (true) {
+            dp.setLength(buf.length);
+            try {
+                socket.receive(dp);
+            } catch (SocketTimeoutException ste) {
+                tick(System.nanoTime() / 1000000);
+                continue;
+            } catch (IOException ioe) {
+                if (channel.isOpen())
+                    System.out.println("Exception caught: "+ioe);
+                return;
+            }
+            packet(buf, dp.getLength());
+        }
+    }
+
+    //------------------------------------
+    //Handle a packet received, from the channel or interleaved
+    //------------------------------------
+    public synchronized void packet(byte[] data, int length) {
+        long now = System.nanoTime() / 1000000;
+
+        //create an RTPpacket object from the datagram
+        RTPpacket rtp_packet = new RTPpacket(data, length);
+        if (LOG_PACKETS) {
+            //print important header fields of the RTP packet received:
+            System.out.println("Got RTP packet with SeqNum # " + rtp_packet.getsequencenumber()
+                               + " TimeStamp " + rtp_packet.gettimestamp() + ", of type "
+                               + rtp_packet.getpayloadtype());
+
+            //print header bitstream:
+            rtp_packet.printheader();
+        }
+
+        //parity packets: a stream of their own, not counted
+        if (rtp_packet.getpayloadtype() == FecDecoder.PAYLOAD_TYPE) {
+            RTPpacket lost = fec.parity(rtp_packet);
+            if (lost != null) {
+                if (nacks != null)
+                    nacks.arrived(lost.getsequencenumber());
+                assemble(lost, now);
+            }
+        }
+        else {
+            received(rtp_packet, now);
+            if (fec.media(rtp_packet))
+                assemble(rtp_packet, now);
+        }
+
+        requestMissing(now);
+    }
+
+    //------------------------------------
+    //No packet for a while: hand out the frames that waited long enough
+    //for their missing packets, and ask again for those still missing
+    //------------------------------------
+    private synchronized void tick(long now) {
+        for (FrameAssembler.Frame frame : assembler.release(now))
+            decoder.decode(frame);
+        requestMissing(now);
+    }
+
+    //------------------------------------
+    //The stream was paused or torn down: hand out the frames being
+    //assembled as they are, and stop asking for the packets missing
+    //------------------------------------
+    public synchronized void flush() {
+        for (FrameAssembler.Frame frame : assembler.flush())
+            decoder.decode(frame);
+        if (nacks != null)
+            nacks.clear();
+    }
+
+    //ask for the packets missing, once found and until they arrive
+    private void requestMissing(long now) {
+        if (nacks == null)
+            return;
+        int n = nacks.due(now, nackSeqs);
+        if (n > 0)
+            feedback.nack(ssrc, nackSeqs, n);
+    }
+
+    //reassemble the frames, and decode those the packet completes
+    private void assemble(RTPpacket rtp_packet, long now) {
+        for (FrameAssembler.Frame frame : assembler.add(rtp_packet, now))
+            decoder.decode(frame);
+    }
+
+    //------------------------------------
+    //Update the statistics with a packet arrived at now (ms)
+    //------------------------------------
+    private void received(RTPpacket rtp_packet, long now) {
+        int seqNb = rtp_packet.getsequencenumber();
+
+        //interarrival jitter: variation of the transit time (RFC 3550 6.4.1)
+        int transit = (int)(now * clock / 1000) - rtp_packet.gettimestamp();
+        if (rtp_packet.getssrc() != ssrc) {
+            ssrc = rtp_packet.getssrc(); //first packet of the stream
+            jitter = 0;
+            restart(seqNb);
+        }
+        else
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+        lastTransit = transit;
+
+        int delta = (seqNb - maxSeq) & 0xFFFF;
+        if (delta < MAX_DROPOUT) {
+            //in order, with an acceptable gap
+            if (nacks != null)
+                for (int i = 1; i < delta && i <= NackList.MAX_MISSING; i++)
+                    nacks.missing((maxSeq + i) & 0xFFFF, now);
+            if (seqNb < maxSeq)
+                cycles += 65536;
+            maxSeq = seqNb;
+        }
+        else if (delta <= 65536 - MAX_MISORDER) {
+            //large jump: the sender restarted if the next packet follows this one
+            if (seqNb != badSeq) {
+                badSeq = (seqNb + 1) & 0xFFFF;
+                return;
+            }
+            restart(seqNb);
+        }
+        //else duplicate or reordered: maybe a packet asked for again
+        else if (nacks != null && nacks.arrived(seqNb))
+            late++;
+
+        received++;
+        highSeqNb = cycles + maxSeq;
+        expected = highSeqNb - baseSeq + 1;
+        cumLost = expected - received;
+        totalBytes += rtp_packet.getpayload_length();
+    }
+
+    //start counting the sequence numbers over from seqNb
+    private void restart(int seqNb) {
+        baseSeq = seqNb;
+        maxSeq = seqNb;
+        cycles = 0;
+        badSeq = -1;
+        received = 0;
+    }
+
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,355 @@
+//RtspParser
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+//------------------------------------
+//Incremental parser of the RTSP/1.0 messages of a connection (RFC 2326),
+//requests or responses: a state machine fed with whatever bytes arrived,
+//which goes on where the last ones stopped. The start line, the headers,
+//any number of them in any order, and a body of Content-Length bytes are
+//copied into a buffer of the parser, reused from message to message, and
+//read from there in place: only what the caller asks for as a String is
+//allocated. Messages pipelined on the connection are taken one at a time,
+//and so are the packets interleaved on it ('$', channel, 16 bit length).
+//------------------------------------
+public class RtspParser {
+
+    static int MAX_MESSAGE_SIZE = 4096;     //start line, headers and body
+    static int MAX_HEADERS = 32;
+    final static int MAX_PACKET_SIZE = 65535;
+    final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    //what parse() found
+    final static int MORE = 0;              //nothing complete yet
+    final static int MESSAGE = 1;           //a request or a response
+    final static int PACKET = 2;            //an interleaved packet
+
+    //states
+    private final static int START = 0;     //between two messages
+    private final static int LINE = 1;      //start line
+    private final static int HEADER = 2;
+    private final static int BODY = 3;
+    private final static int CHANNEL = 4;   //interleaved packet
+    private final static int LENGTH = 5;
+    private final static int DATA = 6;
+
+    private int state = START;
+    private boolean done;                   //a message or packet was returned, not yet cleared
+
+    //the message: its bytes, and where its parts are in them
+    private byte[] text = new byte[MAX_MESSAGE_SIZE];
+    private int size;
+    private int lineStart;                  //of the line being read
+    private int[] tokens = new int[6];      //start and end of the 3 tokens of the start line
+    private int[] headers = new int[4 * MAX_HEADERS]; //name start and end, value start and end
+    private int headerCount;
+    private int contentLength;
+    private int bodyStart;
+
+    //the interleaved packet
+    byte[] data;                            //allocated on the first one
+    int channel;
+    int length;
+    private int lengthBytes;
+    private int dataRead;
+
+    //------------------------------------
+    //Parse the bytes of in from its position, up to the end of the next
+    //message or packet, or up to its limit; returns MESSAGE or PACKET once
+    //one is complete, MORE if more bytes are needed. What was found stays
+    //readable until the next call.
+    //------------------------------------
+    public int parse(ByteBuffer in) throws ProtocolException {
+        if (done)
+            clear();
+        while (in.hasRemaining()) {
+            switch (state) {
+            case START: {
+                byte b = in.get();
+                if (b == '\r' || b == '\n')
+                    continue; //empty lines between messages
+                if (b == '$') {
+                    state = CHANNEL;
+                    continue;
+                }
+                state = LINE;
+                append(b);
+                break;
+            }
+            case LINE:
+            case HEADER: {
+                byte b = in.get();
+                append(b);
+                if (b == '\n' && endOfLine())
+                    return finish(MESSAGE);
+                break;
+            }
+            case BODY: {
+                int n = Math.min(in.remaining(), bodyStart + contentLength - size);
+                in.get(text, size, n);
+                size += n;
+                if (size == bodyStart + contentLength)
+                    return finish(MESSAGE);
+                break;
+            }
+            case CHANNEL:
+                channel = in.get() & 0xFF;
+                length = 0;
+                lengthBytes = 0;
+                state = LENGTH;
+                break;
+            case LENGTH:
+                length = length << 8 | in.get() & 0xFF;
+                if (++lengthBytes < 2)
+                    break;
+                if (data == null)
+                    data = new byte[MAX_PACKET_SIZE];
+                dataRead = 0;
+                state = DATA;
+                if (length == 0)
+                    return finish(PACKET);
+                break;
+            case DATA: {
+                int n = Math.min(in.remaining(), length - dataRead);
+                in.get(data, dataRead, n);
+                dataRead += n;
+                if (dataRead == length)
+                    return finish(PACKET);
+                break;
+            }
+            }
+        }
+        return MORE;
+    }
+
+    private void append(byte b) throws ProtocolException {
+        if (size == text.length)
+            throw new ProtocolException("RTSP message longer than " + text.length + " bytes");
+        text[size++] = b;
+    }
+
+    //a line ended, at size: true if it ended a message without a body
+    private boolean endOfLine() throws ProtocolException {
+        int start = lineStart;
+        int end = size - 1;
+        if (end > start && text[end - 1] == '\r')
+            end--;
+        lineStart = size;
+
+        if (state == LINE) {
+            //method, URI and version, or version, status code and reason
+            int p = start;
+            for (int t = 0; t < 3; t++) {
+                while (p < end && text[p] == ' ')
+                    p++;
+                tokens[2 * t] = p;
+                while (p < end && (text[p] != ' ' || t == 2))
+                    p++;
+                tokens[2 * t + 1] = p;
+            }
+            state = HEADER;
+            return false;
+        }
+
+        if (end == start) {
+            //empty line: end of the headers
+            contentLength = Math.max(0, intValue("Content-Length", 0));
+            if (contentLength == 0)
+                return true;
+            if (size + contentLength > text.length)
+                throw new ProtocolException("RTSP message longer than " + text.length + " bytes");
+            bodyStart = size;
+            state = BODY;
+            return false;
+        }
+        if ((text[start] == ' ' || text[start] == '\t') && headerCount > 0) {
+            headers[4 * headerCount - 1] = trimEnd(start, end); //folded on this line
+            return false;
+        }
+        int colon = start;
+        while (colon < end && text[colon] != ':')
+            colon++;
+        if (colon == end)
+            return false; //not a header: ignored
+        if (headerCount == MAX_HEADERS)
+            throw new ProtocolException("More than " + MAX_HEADERS + " RTSP headers");
+        int h = 4 * headerCount++;
+        headers[h] = start;
+        headers[h + 1] = trimEnd(start, colon);
+        headers[h + 2] = trimStart(colon + 1, end);
+        headers[h + 3] = trimEnd(headers[h + 2], end);
+        return false;
+    }
+
+    private int finish(int found) {
+        state = START;
+        done = true;
+        return found;
+    }
+
+    //forget the last message
+    private void clear() {
+        done = false;
+        size = 0;
+        lineStart = 0;
+        headerCount = 0;
+        contentLength = 0;
+        bodyStart = 0;
+    }
+
+    //------------------------------------
+    //Start line
+    //------------------------------------
+    public boolean isResponse() {
+        return startsWith(tokens[0], tokens[1], "RTSP/");
+    }
+
+    //the method of a request is this one
+    public boolean method(String method) {
+        return equals(tokens[0], tokens[1], method, false);
+    }
+
+    public String method() {
+        return string(tokens[0], tokens[1]);
+    }
+
+    public String uri() {
+        return string(tokens[2], tokens[3]);
+    }
+
+    //status code of a response, -1 if it has none
+    public int status() {
+        return parseInt(tokens[2], tokens[3], -1);
+    }
+
+    //------------------------------------
+    //Headers, by name, whatever its case
+    //------------------------------------
+    public int header(String name) {
+        for (int h = 0; h < 4 * headerCount; h += 4)
+            if (equals(headers[h], headers[h + 1], name, true))
+                return h;
+        return -1;
+    }
+
+    public String value(String name) {
+        int h = header(name);
+        return h < 0 ? null : string(headers[h + 2], headers[h + 3]);
+    }
+
+    //the number the value starts with, or missing
+    public int intValue(String name, int missing) {
+        int h = header(name);
+        return h < 0 ? missing : parseInt(headers[h + 2], headers[h + 3], missing);
+    }
+
+    //------------------------------------
+    //Parameters of a header value, separated by ';': a flag, as in
+    //"RTP/AVP;multicast", or name=value, as in "client_port=25000-25001"
+    //------------------------------------
+    public boolean hasParam(String name, String param) {
+        return param(header(name), param) != -1;
+    }
+
+    //the number the value of a parameter starts with, or missing
+    public int intParam(String name, String param, int missing) {
+        int p = param(header(name), param);
+        return p < 0 ? missing : parseInt(p, paramEnd(p), missing);
+    }
+
+    public String param(String name, String param) {
+        int p = param(header(name), param);
+        return p < 0 ? null : string(p, paramEnd(p));
+    }
+
+    //start of the value of the parameter, the end of the flag for a flag,
+    //-1 if absent
+    private int param(int h, String param) {
+        if (h < 0)
+            return -1;
+        int end = headers[h + 3];
+        int p = headers[h + 2];
+        while (p < end) {
+            int start = trimStart(p, end);
+            int stop = start;
+            while (stop < end && text[stop] != ';' && text[stop] != '=')
+                stop++;
+            if (equals(start, trimEnd(start, stop), param, true))
+                return stop < end && text[stop] == '=' ? trimStart(stop + 1, end) : -2;
+            p = stop;
+            while (p < end && text[p] != ';')
+                p++;
+            p++;
+        }
+        return -1;
+    }
+
+    private int paramEnd(int p) {
+        int end = p;
+        while (end < size && text[end] != ';' && text[end] != '\r' && text[end] != '\n')
+            end++;
+        return trimEnd(p, end);
+    }
+
+    //------------------------------------
+    //Body
+    //------------------------------------
+    public int contentLength() {
+        return contentLength;
+    }
+
+    public String body() {
+        return string(bodyStart, bodyStart + contentLength);
+    }
+
+    //the text of the message, start line, headers and body
+    public String toString() {
+        return string(0, size);
+    }
+
+    //------------------------------------
+    //In place helpers
+    //------------------------------------
+    private boolean equals(int start, int end, String s, boolean ignoreCase) {
+        if (end - start != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            char a = (char)(text[start + i] & 0xFF);
+            char b = s.charAt(i);
+            if (a != b && (!ignoreCase || Character.toLowerCase(a) != Character.toLowerCase(b)))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int start, int end, String s) {
+        return end - start >= s.length() && equals(start, start + s.length(), s, false);
+    }
+
+    private int parseInt(int start, int end, int missing) {
+        start = trimStart(start, end);
+        int n = 0;
+        int p = start;
+        while (p < end && text[p] >= '0' && text[p] <= '9' && p - start < 9)
+            n = 10 * n + text[p++] - '0';
+        return p == start ? missing : n;
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && (text[start] == ' ' || text[start] == '\t'))
+            start++;
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (text[end - 1] == ' ' || text[end - 1] == '\t' || text[end - 1] == '\r' || text[end - 1] == '\n'))
+            end--;
+        return end;
+    }
+
+    private String string(int start, int end) {
+        return new String(text, start, end - start, ISO_8859_1);
+    }
+}
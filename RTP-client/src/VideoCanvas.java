@@ -0,0 +1,107 @@
+//VideoCanvas
+
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
+
+//------------------------------------
+//Render surface of the player, drawn by active rendering: a thread of its
+//own draws each frame into the back buffer of a BufferStrategy, in video
+//memory where the platform allows, and flips it. The EDT only posts the
+//frame to show. If a frame is posted before the previous one was drawn,
+//the previous one is dropped: the display never falls behind the stream.
+//------------------------------------
+public class VideoCanvas extends Canvas implements Runnable {
+
+    private static final long serialVersionUID = 1L;
+
+    private FrameDecoder decoder;   //takes the images back once they are drawn
+    private AtomicReference<BufferedImage> next = new AtomicReference<BufferedImage>();
+    private BufferedImage shown;    //last image drawn, kept to redraw after an expose
+    private volatile boolean redraw;
+    private Thread renderer;
+
+    public volatile int droppedFrames; //posted but replaced before being drawn
+
+    public VideoCanvas(FrameDecoder decoder) {
+        this.decoder = decoder;
+        setIgnoreRepaint(true);
+        setBackground(Color.BLACK);
+    }
+
+    //------------------------------------
+    //Show an image, as soon as the render thread gets to it
+    //------------------------------------
+    public void show(BufferedImage image) {
+        BufferedImage dropped = next.getAndSet(image);
+        if (dropped != null) {
+            droppedFrames++;
+            decoder.recycle(dropped);
+        }
+        wake();
+    }
+
+    //redraw when the window system asks, e.g. after an expose
+    public void paint(Graphics g) {
+        redraw = true;
+        wake();
+    }
+
+    public void update(Graphics g) {
+        paint(g);
+    }
+
+    public void addNotify() {
+        super.addNotify();
+        createBufferStrategy(2);
+        renderer = new Thread(this, "render");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    private synchronized void wake() {
+        notify();
+    }
+
+    public void run() {
+        while (true) {
+            BufferedImage image;
+            synchronized (this) {
+                while ((image = next.getAndSet(null)) == null && !redraw) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                redraw = false;
+            }
+            if (image != null) {
+                if (shown != null)
+                    decoder.recycle(shown);
+                shown = image;
+            }
+            if (shown != null)
+                draw(shown);
+        }
+    }
+
+    //------------------------------------
+    //Draw an image scaled to the canvas, and flip it to the screen
+    //------------------------------------
+    private void draw(BufferedImage image) {
+        BufferStrategy strategy = getBufferStrategy();
+        if (strategy == null)
+            return;
+        do {
+            do {
+                Graphics g = strategy.getDrawGraphics();
+                g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+                g.dispose();
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+    }
+}
@@ -0,0 +1,97 @@
+//AimdRateController
+
+//------------------------------------
+//Loss and delay based RateController, in the spirit of GCC:
+//  - loss above LOSS_HIGH: multiplicative decrease, by half the loss rate
+//  - delay building up (RTT, or jitter when the RTT is unknown, over its
+//    running minimum): decrease to 85% of the rate actually sent
+//  - loss below LOSS_LOW and no delay build up: increase, by 8% per report
+//    away from the last congestion point, by 1% near it
+//Decreases are at least one RTT apart, and follow the rate actually sent,
+//not the target, so the session never aims far above what it can use.
+//------------------------------------
+public class AimdRateController implements RateController {
+
+    static int MIN_BITRATE = 64000;
+    static int MAX_BITRATE = Integer.getInteger("rtp.maxbitrate", 50000000); //also the start bitrate
+    static float LOSS_HIGH = 0.10f;
+    static float LOSS_LOW = 0.02f;
+    static int RATE_WINDOW = 500;   //ms over which the sent rate is measured
+
+    private double target = MAX_BITRATE;
+    private double sentRate;        //bit/s, smoothed; 0 until measured
+    private boolean measuring;      //a window was started
+    private long windowStart;
+    private long windowBytes;
+
+    private double delay = -1;      //smoothed delay signal, ms
+    private double minDelay = -1;   //its running minimum
+    private long lastDecrease;      //nanoTime of the last decrease
+    private double congestionRate;  //target after the last decrease
+    private boolean decreased;
+
+    public synchronized void onSent(long now, int bytes) {
+        if (!measuring) {
+            measuring = true;
+            windowStart = now;
+        }
+        windowBytes += bytes;
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW * 1000000L) {
+            double rate = windowBytes * 8e9 / elapsed;
+            sentRate = sentRate == 0 ? rate : 0.7 * sentRate + 0.3 * rate;
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    public synchronized void onReport(long now, float fractionLost, int jitter, int rtt) {
+        boolean delayBuildUp = delaySignal(rtt >= 0 ? rtt : jitter);
+        double base = sentRate > 0 ? Math.min(target, sentRate) : target;
+        long minInterval = 1000000L * Math.max(rtt, 100);
+
+        if (fractionLost > LOSS_HIGH || delayBuildUp) {
+            if (decreased && now - lastDecrease < minInterval)
+                return;     //the previous decrease has not shown yet
+            if (fractionLost > LOSS_HIGH)
+                target = base * (1 - 0.5 * fractionLost);
+            else
+                target = base * 0.85;
+            target = Math.max(target, MIN_BITRATE);
+            congestionRate = target;
+            lastDecrease = now;
+            decreased = true;
+        }
+        else if (fractionLost < LOSS_LOW) {
+            //probe faster away from the rate that last caused congestion
+            double factor = target < 1.1 * congestionRate ? 1.01 : 1.08;
+            double increased = target * factor;
+            if (sentRate > 0)
+                increased = Math.min(increased, Math.max(target, 1.5 * sentRate)); //not past what is used
+            target = Math.min(increased, MAX_BITRATE);
+        }
+        //between the two, hold
+    }
+
+    //------------------------------------
+    //Feed a delay sample (ms, -1 for none); true if the delay is building up
+    //------------------------------------
+    private boolean delaySignal(int sample) {
+        if (sample < 0)
+            return false;
+        delay = delay < 0 ? sample : 0.8 * delay + 0.2 * sample;
+        if (minDelay < 0 || sample < minDelay)
+            minDelay = sample;
+        else
+            minDelay += (sample - minDelay) * 0.01; //forget old minimums slowly
+        return delay > minDelay + Math.max(10, 0.25 * minDelay);
+    }
+
+    public synchronized int targetBitrate() {
+        return (int)target;
+    }
+
+    public synchronized String toString() {
+        return "target " + (int)(target / 1000) + " kbit/s, sent " + (int)(sentRate / 1000) + " kbit/s";
+    }
+}
@@ -0,0 +1,42 @@
+//BufferPool
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//------------------------------------
+//Pool of direct buffers of one size, shared by the sessions so that
+//off-heap memory is allocated once and reused instead of per packet
+//------------------------------------
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+        free = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    //------------------------------------
+    //A cleared buffer, taken from the pool or newly allocated
+    //------------------------------------
+    public ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b == null)
+            b = ByteBuffer.allocateDirect(bufferSize);
+        b.clear();
+        return b;
+    }
+
+    //------------------------------------
+    //Give a buffer back; it must not be used afterwards
+    //------------------------------------
+    public void release(ByteBuffer b) {
+        if (b != null && b.capacity() == bufferSize)
+            free.offer(b);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,152 @@
+//FecEncoder
+
+import java.nio.*;
+import java.util.Arrays;
+
+//------------------------------------
+//Forward error correction of the RTP stream of a session (RFC 5109): one
+//parity packet, the XOR of K media packets, follows each group of them.
+//A client that lost a single packet of a group rebuilds it from the
+//others and the parity, without a retransmission. K follows the loss the
+//client reports: no parity while nothing is lost, more as loss grows.
+//The parity packets are a stream of their own (RFC 5109 9): an SSRC, a
+//payload type and sequence numbers of their own, on the port of the media
+//stream, announced in the SDP as its FEC stream (RFC 5576), with Sender
+//Reports of their own. Receivers that do not know it see one more source.
+//The groups end with the frames, so that a frame never waits for the
+//packets of the next one.
+//------------------------------------
+public class FecEncoder {
+
+    static boolean ENABLED = Boolean.getBoolean("rtp.fec");      //send parity packets, set with -Drtp.fec=true
+    static int PAYLOAD_TYPE = Integer.getInteger("rtp.fec.pt", 127); //dynamic payload type of the parity packets
+    final static int FEC_HEADER_SIZE = 10;
+    final static int LEVEL_HEADER_SIZE = 4;     //protection length and 16 bit mask
+    final static int OVERHEAD = FEC_HEADER_SIZE + LEVEL_HEADER_SIZE;
+    final static int MAX_GROUP = 16;            //media packets the 16 bit mask covers
+
+    //fraction lost from which each group size is used
+    static float[] LOSS = { 0.005f, 0.02f, 0.05f, 0.10f };
+    static int[] GROUP = { 12, 6, 4, 2 };
+    static float RELEASE = 0.9f;    //decay of the loss followed, per report
+
+    private int k;                  //media packets per parity packet, 0 for none
+    private float loss;             //fraction lost: follows increases at once, decreases slowly
+
+    //the group being protected
+    private byte[] parity;          //XOR of the payloads, zero padded
+    private int length;             //longest payload of the group
+    private int count;              //media packets in the group
+    private int baseSeq;            //sequence number of the first one
+    private int mask;
+    private int bits;               //XOR of the first two bytes of the RTP headers
+    private int timestamp;          //XOR of the timestamps
+    private int lengths;            //XOR of the payload lengths
+    private int lastTimestamp;
+
+    int Ssrc;                       //of the parity stream, not that of the media
+    private int seq = (int)(Math.random() * 65536); //of the parity packets
+    private ByteBuffer packet;
+    int packetCount;                //parity packets sent, for the Sender Reports
+    int octetCount;                 //and their payload octets
+
+    //------------------------------------
+    //For media packets of up to maxLength bytes past their RTP header; the
+    //parity packets are OVERHEAD bytes longer than the longest of them
+    //------------------------------------
+    public FecEncoder(int maxLength) {
+        parity = new byte[maxLength];
+        packet = ByteBuffer.allocateDirect(RTPpacket.HEADER_SIZE + OVERHEAD + maxLength);
+    }
+
+    //------------------------------------
+    //Protect a media packet: its RTP header and payload headers from the
+    //position to the limit of header, then the payload; neither moves.
+    //True when the group is complete, and packet() is to be sent
+    //------------------------------------
+    public synchronized boolean add(ByteBuffer header, ByteBuffer payload) {
+        if (k == 0)
+            return false;
+        int h = header.position();
+        if (header.limit() - h - RTPpacket.HEADER_SIZE + payload.remaining() > parity.length)
+            return false; //longer than sent by the session, as relayed: left unprotected
+        int packetSeq = header.getShort(h + 2) & 0xFFFF;
+        if (count > 0 && ((packetSeq - baseSeq) & 0xFFFF) >= MAX_GROUP)
+            count = 0; //out of reach of the mask: start over
+        if (count == 0) {
+            Arrays.fill(parity, 0, length, (byte)0);
+            length = 0;
+            baseSeq = packetSeq;
+            mask = bits = timestamp = lengths = 0;
+        }
+        bits ^= header.getShort(h);
+        lastTimestamp = header.getInt(h + 4);
+        timestamp ^= lastTimestamp;
+
+        //what follows the fixed RTP header: payload headers, then payload
+        int n = 0;
+        for (int i = h + RTPpacket.HEADER_SIZE; i < header.limit(); i++)
+            parity[n++] ^= header.get(i);
+        for (int i = payload.position(); i < payload.limit(); i++)
+            parity[n++] ^= payload.get(i);
+        lengths ^= n;
+        length = Math.max(length, n);
+
+        mask |= 0x8000 >>> ((packetSeq - baseSeq) & 0xFFFF);
+        count++;
+        boolean marker = (header.get(h + 1) & 0x80) != 0;
+        return count >= k || marker || count == MAX_GROUP;
+    }
+
+    //------------------------------------
+    //The parity packet of the group, from its position to its limit
+    //------------------------------------
+    public synchronized ByteBuffer packet() {
+        packet.clear();
+        packet.put((byte)0x80);     //V=2, P=0, X=0, CC=0
+        packet.put((byte)PAYLOAD_TYPE);
+        packet.putShort((short)seq++);
+        packet.putInt(lastTimestamp);
+        packet.putInt(Ssrc);
+
+        //FEC header: E=0, L=0 (16 bit mask), then the recovery fields
+        packet.put((byte)(bits >> 8 & 0x3F));  //P X CC recovery
+        packet.put((byte)bits);                 //M PT recovery
+        packet.putShort((short)baseSeq);
+        packet.putInt(timestamp);
+        packet.putShort((short)lengths);
+        //level 0 header
+        packet.putShort((short)length);
+        packet.putShort((short)mask);
+        packet.put(parity, 0, length);
+        packet.flip();
+
+        count = 0;
+        packetCount++;
+        octetCount += packet.remaining() - RTPpacket.HEADER_SIZE;
+        return packet;
+    }
+
+    //------------------------------------
+    //Adapt the group size to the fraction lost of a receiver report;
+    //returns the fraction the parity packets leave unrecovered, for the
+    //rate control: a packet of a group of k + 1 is lost for good when
+    //another one of the group is lost too
+    //------------------------------------
+    public synchronized float onReport(float fractionLost) {
+        loss = Math.max(fractionLost, loss * RELEASE);
+        k = 0;
+        for (int i = 0; i < LOSS.length; i++)
+            if (loss >= LOSS[i])
+                k = GROUP[i];
+        if (k == 0) {
+            count = 0; //drop the group started, if any
+            return fractionLost;
+        }
+        return fractionLost * (float)(1 - Math.pow(1 - fractionLost, k));
+    }
+
+    public synchronized int groupSize() {
+        return k;
+    }
+}
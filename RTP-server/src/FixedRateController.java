@@ -0,0 +1,24 @@
+//FixedRateController
+
+//------------------------------------
+//RateController ignoring the feedback: the session always sends at the
+//same bitrate
+//------------------------------------
+public class FixedRateController implements RateController {
+
+    private int bitrate;
+
+    public FixedRateController(int bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    public void onReport(long now, float fractionLost, int jitter, int rtt) {
+    }
+
+    public void onSent(long now, int bytes) {
+    }
+
+    public int targetBitrate() {
+        return bitrate;
+    }
+}
@@ -0,0 +1,379 @@
+//FrameCache
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+//------------------------------------
+//Process-wide cache of video frames, kept off-heap in direct buffers.
+//Sessions watching the same file share one mapped index of it and the
+//frames cached from it, so the cost of a popular file does not grow with
+//its number of viewers. Frames are pinned while a session sends them and
+//evicted in CLOCK order when the byte budget is reached.
+//Next to each frame the cache keeps its lower quality versions, one per
+//congestion level, transcoded in the background by the Transcoder.
+//------------------------------------
+public class FrameCache {
+
+    static long BUDGET = Long.getLong("rtp.cache.bytes", 64L << 20); //off-heap bytes, set with -Drtp.cache.bytes=
+    final static int MIN_CLASS = 12; //smallest buffer: 4 KB
+    final static int LEVELS = 5;     //quality levels of a frame: the original, then congestion levels 1 to 4
+    static boolean PREBUILD = Boolean.getBoolean("rtp.ladder.prebuild"); //transcode every level of a file
+                                                                        //when it is first opened
+
+    private static FrameCache shared;
+
+    private final long budget;
+    private long used;              //bytes of the buffers allocated, cached or free
+    private HashMap<String, Video> videos = new HashMap<String, Video>();
+    private ArrayList<Entry> clock = new ArrayList<Entry>(); //cached frames, in CLOCK order
+    private int hand;               //next frame looked at for eviction
+    private ArrayList<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>(); //by size class
+    private Transcoder transcoder;  //created on the first lower quality request
+
+    //counters, sampled by the status views
+    long hits;
+    long misses;
+    long evictions;
+    long transcodes;
+
+    //------------------------------------
+    //The cache shared by every session of the process
+    //------------------------------------
+    public static synchronized FrameCache shared() {
+        if (shared == null)
+            shared = new FrameCache(BUDGET);
+        return shared;
+    }
+
+    public FrameCache(long budget) {
+        this.budget = budget;
+        for (int c = 0; c < 32; c++)
+            free.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    //------------------------------------
+    //A frame held by a session: its bytes, between the position and the
+    //limit of data, stay valid until it is given back with release()
+    //------------------------------------
+    public static class Frame {
+        public ByteBuffer data;
+        Entry entry;    //null if the frame was not cached
+    }
+
+    //------------------------------------
+    //A cached frame
+    //------------------------------------
+    static class Entry {
+        Video video;
+        int slot;           //in video.entries: frame nb * LEVELS + level
+        ByteBuffer buffer;  //direct, from the free lists
+        int pins;           //sessions sending it right now
+        boolean referenced; //CLOCK bit, set on every hit
+    }
+
+    //------------------------------------
+    //A video file opened through the cache, shared by its sessions
+    //------------------------------------
+    public class Video {
+        String path;
+        MappedVideoStream stream; //index and mapping of the file
+        Entry[] entries;    //cached frames by frame nb * LEVELS + quality level
+        BitSet requested;   //slots of entries waiting for the transcoder
+        int refs;           //sessions that opened it
+
+        //------------------------------------
+        //Frame nb (from 0), pinned, or null past the end of the video
+        //------------------------------------
+        public Frame acquire(int nb) {
+            if (nb < 0 || nb >= stream.framecount())
+                return null;
+            Frame frame = new Frame();
+            ByteBuffer buffer;
+            synchronized (FrameCache.this) {
+                Entry e = entries[nb * LEVELS];
+                if (e != null) {
+                    hits++;
+                    return pin(e, frame);
+                }
+                misses++;
+                buffer = allocate(stream.framelength(nb));
+            }
+
+            ByteBuffer mapped = stream.slice(nb);
+            if (buffer == null) {
+                //too big for the budget, or everything cached is pinned
+                frame.data = mapped;
+                return frame;
+            }
+            //copy from the file outside of the lock: it may fault in pages
+            buffer.clear();
+            buffer.put(mapped);
+            buffer.flip();
+
+            synchronized (FrameCache.this) {
+                return pin(insert(this, nb * LEVELS, buffer), frame);
+            }
+        }
+
+        //------------------------------------
+        //Frame nb at a lower quality level (1 to LEVELS - 1), pinned. If that
+        //version is not cached yet, it is handed to the transcoder and null
+        //is returned: the caller sends another version meanwhile.
+        //------------------------------------
+        public Frame acquire(int nb, int level) {
+            if (level == 0)
+                return acquire(nb);
+            if (nb < 0 || nb >= stream.framecount())
+                return null;
+            int slot = nb * LEVELS + level;
+            synchronized (FrameCache.this) {
+                Entry e = entries[slot];
+                if (e != null) {
+                    hits++;
+                    return pin(e, new Frame());
+                }
+                misses++;
+            }
+            request(nb, level);
+            return null;
+        }
+
+        //------------------------------------
+        //Have frame nb transcoded to a level ahead of time, unless it is
+        //cached or requested already
+        //------------------------------------
+        public void request(int nb, int level) {
+            if (claim(this, nb, level))
+                transcoder().request(this, nb, level);
+        }
+
+        //------------------------------------
+        //Unpin a frame returned by acquire(); its data must not be used anymore
+        //------------------------------------
+        public void release(Frame frame) {
+            if (frame.entry == null)
+                return;
+            synchronized (FrameCache.this) {
+                frame.entry.pins--;
+            }
+            frame.entry = null;
+        }
+
+        public int framecount() {
+            return stream.framecount();
+        }
+
+        //------------------------------------
+        //Close the file for one session; the last one drops its frames
+        //------------------------------------
+        public void close() throws IOException {
+            synchronized (FrameCache.this) {
+                if (--refs > 0)
+                    return;
+                videos.remove(path);
+                //a frame still pinned by a closing session is left to the CLOCK
+                for (int i = clock.size() - 1; i >= 0; i--) {
+                    Entry e = clock.get(i);
+                    if (e.video == this && e.pins == 0)
+                        remove(i);
+                }
+            }
+            stream.close();
+        }
+    }
+
+    //------------------------------------
+    //Open a video file, or share it with the sessions that already did
+    //------------------------------------
+    public Video open(String filename) throws IOException {
+        String path = new File(filename).getCanonicalPath();
+        synchronized (this) {
+            Video v = videos.get(path);
+            if (v != null) {
+                v.refs++;
+                return v;
+            }
+        }
+        //index the file outside of the lock
+        MappedVideoStream stream = new MappedVideoStream(filename);
+        synchronized (this) {
+            Video v = videos.get(path);
+            if (v != null) {
+                //opened by another session meanwhile
+                v.refs++;
+                stream.close();
+                return v;
+            }
+            v = new Video();
+            v.path = path;
+            v.stream = stream;
+            v.entries = new Entry[stream.framecount() * LEVELS];
+            v.requested = new BitSet();
+            v.refs = 1;
+            videos.put(path, v);
+            if (PREBUILD)
+                transcoder().prebuild(v);
+            return v;
+        }
+    }
+
+    //------------------------------------
+    //Store a version transcoded by the transcoder; length bytes of data.
+    //Dropped if it does not fit in the budget.
+    //------------------------------------
+    void put(Video v, int nb, int level, byte[] data, int length) {
+        int slot = nb * LEVELS + level;
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = allocate(length);
+            if (buffer == null) {
+                v.requested.clear(slot);
+                return;
+            }
+        }
+        buffer.clear();
+        buffer.put(data, 0, length);
+        buffer.flip();
+        synchronized (this) {
+            v.requested.clear(slot);
+            if (v.refs <= 0) {
+                free(buffer); //closed while it was transcoded
+                return;
+            }
+            transcodes++;
+            insert(v, slot, buffer);
+        }
+    }
+
+    //a transcoding request that could not be carried out
+    synchronized void cancel(Video v, int nb, int level) {
+        v.requested.clear(nb * LEVELS + level);
+    }
+
+    //------------------------------------
+    //Mark a version of a frame as being transcoded; false if it is cached
+    //already, requested already, or if the video was closed
+    //------------------------------------
+    synchronized boolean claim(Video v, int nb, int level) {
+        int slot = nb * LEVELS + level;
+        if (v.refs <= 0 || v.entries[slot] != null || v.requested.get(slot))
+            return false;
+        v.requested.set(slot);
+        return true;
+    }
+
+    //------------------------------------
+    //Cache buffer in a slot of v, unless another thread got there first;
+    //returns the entry in the slot. Holding the lock.
+    //------------------------------------
+    private Entry insert(Video v, int slot, ByteBuffer buffer) {
+        Entry e = v.entries[slot];
+        if (e != null) {
+            free(buffer);
+            return e;
+        }
+        e = new Entry();
+        e.video = v;
+        e.slot = slot;
+        e.buffer = buffer;
+        e.referenced = true;
+        v.entries[slot] = e;
+        clock.add(e);
+        return e;
+    }
+
+    //pin an entry for a session, holding the lock
+    private Frame pin(Entry e, Frame frame) {
+        e.referenced = true;
+        e.pins++;
+        frame.entry = e;
+        frame.data = e.buffer.duplicate();
+        return frame;
+    }
+
+    private synchronized Transcoder transcoder() {
+        if (transcoder == null)
+            transcoder = new Transcoder(this);
+        return transcoder;
+    }
+
+    //------------------------------------
+    //A buffer of at least length bytes within the budget, taken from the
+    //free lists, or allocated after evicting frames. Returns null if the
+    //budget cannot make room for it.
+    //------------------------------------
+    private ByteBuffer allocate(int length) {
+        int c = sizeClass(length);
+        long capacity = 1L << c;
+        if (capacity > budget)
+            return null;
+        ArrayDeque<ByteBuffer> list = free.get(c);
+        int scanned = 0;
+        while (list.isEmpty() && used + capacity > budget) {
+            //drop a free buffer of another size first, then evict
+            if (dropFree())
+                continue;
+            if (clock.isEmpty() || scanned > 2 * clock.size())
+                return null; //every frame is pinned
+            if (hand >= clock.size())
+                hand = 0;
+            Entry e = clock.get(hand);
+            scanned++;
+            if (e.pins > 0) {
+                hand++;
+            } else if (e.referenced) {
+                e.referenced = false;
+                hand++;
+            } else {
+                remove(hand);
+                evictions++;
+            }
+        }
+        if (!list.isEmpty())
+            return list.poll();
+        used += capacity;
+        return ByteBuffer.allocateDirect((int)capacity);
+    }
+
+    //------------------------------------
+    //Take the frame at position i of the clock out of the cache
+    //------------------------------------
+    private void remove(int i) {
+        Entry e = clock.get(i);
+        //keep the clock compact: move the last frame into the hole
+        Entry last = clock.remove(clock.size() - 1);
+        if (last != e)
+            clock.set(i, last);
+        e.video.entries[e.slot] = null;
+        free(e.buffer);
+        e.buffer = null;
+    }
+
+    private void free(ByteBuffer buffer) {
+        free.get(sizeClass(buffer.capacity())).add(buffer);
+    }
+
+    //give back the memory of one free buffer, if there is one
+    private boolean dropFree() {
+        for (int c = free.size() - 1; c >= MIN_CLASS; c--) {
+            ByteBuffer b = free.get(c).poll();
+            if (b != null) {
+                used -= b.capacity();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //power of two of the smallest buffer holding length bytes
+    static int sizeClass(int length) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(length - 1));
+    }
+
+    //one line summary of the counters
+    public synchronized String status() {
+        return "cache: " + clock.size() + " frames, " + (used >> 10) + " KB, hits: " + hits
+             + ", misses: " + misses + ", evictions: " + evictions + ", transcoded: " + transcodes;
+    }
+}
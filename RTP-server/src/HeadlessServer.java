@@ -0,0 +1,54 @@
+/* ------------------
+   HeadlessServer
+   usage: java HeadlessServer [RTSP listening port] [nio|pool|virtual] [status period in s]
+   Same as Server, without a window: runs on hosts without a display
+   and never loads AWT or Swing. The status line is printed every
+   status period (default 10 s, 0 to disable).
+   ---------------------- */
+
+import java.net.*;
+
+public class HeadlessServer
+{
+    static int STATUS_PERIOD = 10; //seconds between two status lines
+
+    //------------------------------------
+    //main
+    //------------------------------------
+    public static void main(String argv[]) throws Exception
+    {
+        //never open a display, even if ImageIO pulls in java.awt.image
+        System.setProperty("java.awt.headless", "true");
+
+        final SessionRegistry registry = new SessionRegistry();
+
+        //set host name
+        String ServerHost = "127.0.0.1";
+        InetAddress serv_ipaddr = InetAddress.getByName(ServerHost);
+
+        //get RTSP socket port and mode from the command line
+        int RTSPport = Integer.parseInt(argv[0]);
+        String mode = argv.length > 1 ? argv[1] : "nio";
+        final int period = argv.length > 2 ? Integer.parseInt(argv[2]) : STATUS_PERIOD;
+
+        //sample the counters instead of reporting every frame
+        if (period > 0) {
+            Thread status = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(period * 1000L);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        System.out.println("[Status] " + registry.status());
+                    }
+                }
+            }, "status");
+            status.setDaemon(true);
+            status.start();
+        }
+
+        RtspServer.run(serv_ipaddr, RTSPport, mode, registry);
+    }
+}
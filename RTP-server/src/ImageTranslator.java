@@ -0,0 +1,73 @@
+//ImageTranslator
+
+import java.io.*;
+import java.awt.image.*;
+import java.util.*;
+import javax.imageio.*;
+import javax.imageio.stream.ImageOutputStream;
+
+//------------------------------------
+//Translate an image to different encoding or quality
+//------------------------------------
+public class ImageTranslator {
+
+    private float compressionQuality;
+    private OutputBuffer baos;
+    private BufferedImage image;
+    private Iterator<ImageWriter>writers;
+    private ImageWriter writer;
+    private ImageWriteParam param;
+    private ImageOutputStream ios;
+
+    public ImageTranslator(float cq) {
+        compressionQuality = cq;
+
+        try {
+            baos =  new OutputBuffer();
+            ios = ImageIO.createImageOutputStream(baos);
+
+            writers = ImageIO.getImageWritersByFormatName("jpeg");
+            writer = (ImageWriter)writers.next();
+            writer.setOutput(ios);
+
+            param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(compressionQuality);
+
+        } catch (Exception ex) {
+            System.out.println("Exception caught in image translator: "+ex);
+            System.exit(0);
+        }
+    }
+
+    //------------------------------------
+    //Re-encode the image in the first length bytes of buf, in place
+    //returns the new length, or -1 if it does not fit in buf
+    //------------------------------------
+    public int compress(byte[] buf, int length) {
+        try {
+            baos.reset();
+            image = ImageIO.read(new ByteArrayInputStream(buf, 0, length));
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (Exception ex) {
+            System.out.println("Exception caught in compress: "+ex);
+            return -1;
+        }
+        if (baos.size() > buf.length)
+            return -1;
+        System.arraycopy(baos.buffer(), 0, buf, 0, baos.size());
+        return baos.size();
+    }
+
+    //output stream whose bytes can be read without a copy
+    static class OutputBuffer extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    public void setCompressionQuality(float cq) {
+        compressionQuality = cq;
+        param.setCompressionQuality(compressionQuality);
+    }
+}
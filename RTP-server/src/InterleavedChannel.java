@@ -0,0 +1,219 @@
+//InterleavedChannel
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//------------------------------------
+//RTP and RTCP interleaved on the RTSP connection of a session (RFC 2326
+//10.12), for the clients that UDP does not reach: each packet is framed
+//by '$', its channel number and its 16 bit length. The packets of the
+//media loop and the responses of the control plane are serialized here.
+//The packets go out in gather writes, or straight from the video file
+//with FileChannel.transferTo. What the socket does not take at once is
+//kept in an output buffer and written before anything else, when the
+//socket can take more: while that buffer is full, packets are dropped
+//whole, so that the stream stays framed, and responses are never dropped.
+//------------------------------------
+public class InterleavedChannel {
+
+    final static int PREFIX_SIZE = 4;   //'$', channel, length
+    static int OUT_BUFFER = Integer.getInteger("rtp.tcp.buffer", 256 << 10); //bytes waiting for the socket
+
+    private WritableByteChannel channel;    //the RTSP connection
+    private ByteBuffer pending;     //bytes the socket did not take yet, direct, allocated on first use
+    private ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+    private ByteBuffer[] packet = new ByteBuffer[2];
+    volatile SelectionKey key;      //of the connection in the RtspReactor, to be told when to flush
+    private final ReentrantLock lock = new ReentrantLock(); //held across the writes, which may block
+
+    int dropped;                    //packets dropped because the output buffer was full
+
+    public InterleavedChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    //------------------------------------
+    //Write the packets framed by the caller, from the position to the limit
+    //of each buffer; false if they were dropped
+    //------------------------------------
+    public boolean write(ByteBuffer[] srcs) throws IOException {
+        lock.lock();
+        try {
+            int length = 0;
+            for (ByteBuffer b : srcs)
+                length += b.remaining();
+            if (!flush()) {
+                //the socket is behind: queue the packet whole, or drop it
+                if (!fits(length))
+                    return drop();
+                for (ByteBuffer b : srcs)
+                    pending.put(b);
+                return true;
+            }
+            if (channel instanceof GatheringByteChannel)
+                ((GatheringByteChannel)channel).write(srcs);
+            else
+                for (ByteBuffer b : srcs)
+                    channel.write(b);
+            keep(srcs);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Write a packet: its framed headers, then count bytes of a file from a
+    //position, transferred by the file system without being copied
+    //------------------------------------
+    public boolean write(ByteBuffer headers, FileChannel file, long position, int count) throws IOException {
+        lock.lock();
+        try {
+            if (!flush()) {
+                if (!fits(headers.remaining() + count))
+                    return drop();
+                pending.put(headers);
+                read(file, position, count);
+                return true;
+            }
+            channel.write(headers);
+            if (headers.hasRemaining()) {
+                //the socket is full already: keep the rest of the packet
+                pending().put(headers);
+                read(file, position, count);
+                return true;
+            }
+            long sent = 0;
+            while (sent < count) {
+                long n = file.transferTo(position + sent, count - sent, channel);
+                if (n <= 0)
+                    break;
+                sent += n;
+            }
+            if (sent < count)
+                read(file, position + sent, (int)(count - sent));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Write an RTCP packet on a channel
+    //------------------------------------
+    public boolean write(int channelNb, byte[] data, int length) throws IOException {
+        lock.lock();
+        try {
+            prefix.clear();
+            prefix.put((byte)'$').put((byte)channelNb).putShort((short)length).flip();
+            packet[0] = prefix;
+            packet[1] = ByteBuffer.wrap(data, 0, length);
+            boolean written = write(packet);
+            packet[1] = null;
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Write an RTSP response; it is never dropped
+    //------------------------------------
+    public void writeControl(ByteBuffer response) throws IOException {
+        lock.lock();
+        try {
+            if (flush())
+                channel.write(response);
+            if (response.hasRemaining()) {
+                if (!fits(response.remaining())) {
+                    //grow the buffer rather than lose a response
+                    ByteBuffer larger = ByteBuffer.allocateDirect(pending.position() + response.remaining());
+                    pending.flip();
+                    larger.put(pending);
+                    pending = larger;
+                }
+                pending.put(response);
+                wantWrite(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Write what the output buffer holds; true once it is empty
+    //------------------------------------
+    public boolean flush() throws IOException {
+        lock.lock();
+        try {
+            if (pending == null || pending.position() == 0)
+                return true;
+            pending.flip();
+            channel.write(pending);
+            pending.compact();
+            boolean empty = pending.position() == 0;
+            wantWrite(!empty);
+            return empty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return pending == null || pending.position() == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //keep what the socket did not take of a packet
+    private void keep(ByteBuffer[] srcs) {
+        for (ByteBuffer b : srcs) {
+            if (b.hasRemaining()) {
+                pending().put(b);
+                wantWrite(true);
+            }
+        }
+    }
+
+    //append count bytes of a file to the output buffer
+    private void read(FileChannel file, long position, int count) throws IOException {
+        ByteBuffer buf = pending();
+        int limit = buf.limit();
+        buf.limit(buf.position() + count);
+        while (buf.hasRemaining())
+            if (file.read(buf, position + count - buf.remaining()) < 0)
+                throw new EOFException();
+        buf.limit(limit);
+        wantWrite(true);
+    }
+
+    private boolean fits(int length) {
+        return pending().remaining() >= length;
+    }
+
+    private boolean drop() {
+        dropped++;
+        return false;
+    }
+
+    private ByteBuffer pending() {
+        if (pending == null)
+            pending = ByteBuffer.allocateDirect(OUT_BUFFER);
+        return pending;
+    }
+
+    //ask the reactor to call flush() once the socket can take more, or not
+    private void wantWrite(boolean on) {
+        SelectionKey k = key;
+        if (k == null || !k.isValid())
+            return;
+        k.interestOps(on ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        if (on)
+            k.selector().wakeup();
+    }
+}
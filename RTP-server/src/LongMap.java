@@ -0,0 +1,92 @@
+//LongMap
+
+//------------------------------------
+//Hash map from long keys to objects, without boxing the keys: open
+//addressing with linear probing. Not thread-safe.
+//------------------------------------
+public class LongMap<V> {
+
+    private long[] keys;
+    private Object[] values;    //null for a free slot
+    private int size;
+
+    public LongMap() {
+        keys = new long[16];
+        values = new Object[16];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return (V)values[i];
+        return null;
+    }
+
+    public void put(long key, V value) {
+        if (2 * (size + 1) > keys.length)
+            grow();
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key)
+                break;
+        if (values[i] == null)
+            return null;
+        V old = (V)values[i];
+        values[i] = null;
+        size--;
+
+        //move back the entries of the run after the hole that probed past it
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[2 * oldKeys.length];
+        values = new Object[2 * oldKeys.length];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldValues[i] != null)
+                put(oldKeys[i], cast(oldValues[i]));
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(Object o) {
+        return (V)o;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,39 @@
+//Lookahead
+
+//------------------------------------
+//Transcoding window of one congested session. The next DEPTH frames after
+//the send cursor are handed to the transcoder workers in frame order, so
+//their lower quality versions are in the frame cache by the time they are
+//due. The sender never waits: a frame whose version is not ready yet is
+//sent as it is. At most DEPTH frames of a session are in flight at once.
+//------------------------------------
+public class Lookahead {
+
+    static int DEPTH = Integer.getInteger("rtp.lookahead", 10); //frames transcoded ahead of the sender
+
+    private FrameCache.Video video;
+    private int level;  //level of the frames in the window, 0 when not congested
+    private int end;    //first frame after the window
+
+    public Lookahead(FrameCache.Video video) {
+        this.video = video;
+    }
+
+    //------------------------------------
+    //The sender is at frame nb, at a congestion level: extend the window to
+    //the DEPTH frames after nb. A change of level starts a new window.
+    //------------------------------------
+    public void advance(int nb, int level) {
+        if (level != this.level) {
+            this.level = level;
+            end = nb + 1;
+        }
+        if (level == 0)
+            return;
+        if (end <= nb)
+            end = nb + 1; //the window fell behind, after a seek or a skip
+        int last = Math.min(nb + 1 + DEPTH, video.framecount());
+        for (; end < last; end++)
+            video.request(end, level);
+    }
+}
@@ -0,0 +1,142 @@
+//MappedVideoStream
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+//------------------------------------
+//Video file, memory-mapped. The file is scanned once when it is opened
+//to index where every frame starts and how long it is; frames are then
+//handed out as views of the mapping, without reading or copying them,
+//and any frame can be reached by its number.
+//------------------------------------
+public class MappedVideoStream {
+
+    final static int LENGTH_SIZE = 5;   //ASCII digits before each frame
+    static long REGION_SIZE = 1L << 30; //largest single mapping; larger files use several
+
+    RandomAccessFile file;  //video file
+    FileChannel channel;
+    MappedByteBuffer[] regions; //mappings covering the file
+    long[] regionStart;     //file offset of each region
+
+    long[] offset;  //file offset of the data of each frame
+    int[] length;   //length of each frame
+    int[] region;   //region holding each frame
+    int frame_count;
+
+    //-----------------------------------
+    //constructor: map the file and index its frames
+    //-----------------------------------
+    public MappedVideoStream(String filename) throws IOException {
+        file = new RandomAccessFile(filename, "r");
+        channel = file.getChannel();
+        try {
+            index(channel.size());
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    //-----------------------------------
+    //Walk the length prefixes of the file. A frame never spans two regions:
+    //a region ends before the first frame that would not fit in it.
+    //A truncated last frame is left out of the index.
+    //-----------------------------------
+    private void index(long size) throws IOException {
+        offset = new long[1024];
+        length = new int[1024];
+        region = new int[1024];
+        regions = new MappedByteBuffer[1];
+        regionStart = new long[1];
+
+        int r = -1;
+        long start = 0;     //file offset of the current region
+        long end = 0;       //and of its end
+        long pos = 0;       //file offset of the next length prefix
+        frame_count = 0;
+        while (pos + LENGTH_SIZE <= size) {
+            if (pos + LENGTH_SIZE > end) {
+                //the length prefix is past the current region
+                r = map(r + 1, pos, size);
+                start = pos;
+                end = pos + regions[r].capacity();
+            }
+            MappedByteBuffer map = regions[r];
+            int len = 0;
+            for (int i = 0; i < LENGTH_SIZE; i++) {
+                int digit = map.get((int)(pos - start) + i) - '0';
+                if (digit < 0 || digit > 9)
+                    throw new IOException("bad frame length at offset " + pos + " of the video file");
+                len = len * 10 + digit;
+            }
+            long data = pos + LENGTH_SIZE;
+            if (data + len > size) {
+                System.out.println("Video file truncated in frame #" + (frame_count + 1));
+                break;
+            }
+            if (data + len > end) {
+                //the frame crosses the end of the region, map again from its prefix
+                end = pos;
+                continue;
+            }
+
+            if (frame_count == offset.length) {
+                offset = Arrays.copyOf(offset, 2 * frame_count);
+                length = Arrays.copyOf(length, 2 * frame_count);
+                region = Arrays.copyOf(region, 2 * frame_count);
+            }
+            offset[frame_count] = data;
+            length[frame_count] = len;
+            region[frame_count] = r;
+            frame_count++;
+            pos = data + len;
+        }
+    }
+
+    //-----------------------------------
+    //Map region r of the file from offset start
+    //-----------------------------------
+    private int map(int r, long start, long size) throws IOException {
+        if (r == regions.length) {
+            regions = Arrays.copyOf(regions, 2 * r);
+            regionStart = Arrays.copyOf(regionStart, 2 * r);
+        }
+        long regionSize = Math.min(REGION_SIZE, size - start);
+        regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, regionSize);
+        regionStart[r] = start;
+        return r;
+    }
+
+    //-----------------------------------
+    // slice
+    //returns frame nb (from 0) as a view of the file of its own, between
+    //its position and its limit, so that several threads can share the stream
+    //-----------------------------------
+    public ByteBuffer slice(int nb) {
+        if (nb < 0 || nb >= frame_count)
+            return null;
+        ByteBuffer view = regions[region[nb]].duplicate();
+        int pos = (int)(offset[nb] - regionStart[region[nb]]);
+        view.limit(pos + length[nb]).position(pos);
+        return view;
+    }
+
+    public int framecount() {
+        return frame_count;
+    }
+
+    public int framelength(int nb) {
+        return length[nb];
+    }
+
+    //-----------------------------------
+    // close
+    //releases the video file; the mappings go away once they are unreachable
+    //-----------------------------------
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,158 @@
+//MediaScheduler
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+//------------------------------------
+//Media plane scheduler: one event loop per core, each running the tasks
+//pinned to it in order of their absolute deadline (System.nanoTime).
+//A session pins all of its tasks to one loop so they never run concurrently.
+//------------------------------------
+public class MediaScheduler {
+
+    private static MediaScheduler shared;
+
+    private Loop[] loops;
+
+    //------------------------------------
+    //The scheduler shared by every session of the process, one loop per core
+    //------------------------------------
+    public static synchronized MediaScheduler shared() {
+        if (shared == null)
+            shared = new MediaScheduler(Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    public MediaScheduler(int nbLoops) {
+        loops = new Loop[nbLoops];
+        for (int i = 0; i < nbLoops; i++) {
+            loops[i] = new Loop();
+            Thread t = new Thread(loops[i], "media-loop-" + i);
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            t.start();
+        }
+    }
+
+    //------------------------------------
+    //The loop a key (e.g. a session ID) is pinned to
+    //------------------------------------
+    public Loop loopFor(int key) {
+        return loops[(key & 0x7FFFFFFF) % loops.length];
+    }
+
+    //------------------------------------
+    //Work run by a loop at an absolute deadline
+    //------------------------------------
+    public static abstract class Task implements Comparable<Task> {
+        public final static long DONE = Long.MIN_VALUE; //returned by run() when the task is over
+
+        long deadline;              //System.nanoTime() at which to run
+        volatile boolean cancelled;
+
+        //run the task; returns the absolute deadline of its next run, or DONE
+        public abstract long run(long deadline);
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        //the last run threw t: the task is dropped, and what it served with it
+        public void failed(Throwable t) {
+        }
+
+        public int compareTo(Task other) {
+            //nanoTime values may wrap, compare their difference
+            long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+    }
+
+    //------------------------------------
+    //One event loop over a deadline heap
+    //------------------------------------
+    public static class Loop implements Runnable {
+        private PriorityQueue<Task> heap = new PriorityQueue<Task>();
+        private ReentrantLock lock = new ReentrantLock();
+        private Condition changed = lock.newCondition();
+
+        //------------------------------------
+        //Run task at the absolute deadline (System.nanoTime())
+        //------------------------------------
+        public void schedule(Task task, long deadline) {
+            lock.lock();
+            try {
+                task.deadline = deadline;
+                heap.add(task);
+                if (heap.peek() == task)
+                    changed.signal(); //earlier than what the loop waits for
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //------------------------------------
+        //Run task every period ms starting now, until it is cancelled
+        //------------------------------------
+        public Task scheduleEvery(final Runnable r, final int period) {
+            Task task = new Task() {
+                public long run(long deadline) {
+                    r.run();
+                    return deadline + TimeUnit.MILLISECONDS.toNanos(period);
+                }
+            };
+            schedule(task, System.nanoTime());
+            return task;
+        }
+
+        public void run() {
+            while (true) {
+                Task task;
+                lock.lock();
+                try {
+                    while (true) {
+                        task = heap.peek();
+                        if (task == null) {
+                            changed.awaitUninterruptibly();
+                            continue;
+                        }
+                        if (task.cancelled) {
+                            heap.poll();
+                            continue;
+                        }
+                        long wait = task.deadline - System.nanoTime();
+                        if (wait <= 0)
+                            break;
+                        try {
+                            changed.awaitNanos(wait);
+                        } catch (InterruptedException ie) {
+                            //keep serving the heap
+                        }
+                    }
+                    heap.poll();
+                } finally {
+                    lock.unlock();
+                }
+
+                //run outside the lock so tasks can schedule other tasks
+                long next;
+                try {
+                    next = task.run(task.deadline);
+                } catch (Throwable t) {
+                    //an Error too, as running out of direct memory: the
+                    //task is dropped, the other tasks of the loop go on
+                    System.out.println("Exception caught in media loop: " + t);
+                    next = Task.DONE;
+                    try {
+                        task.failed(t);
+                    } catch (Throwable t2) {
+                        System.out.println("Exception caught in media loop: " + t2);
+                    }
+                }
+                if (next != Task.DONE && !task.cancelled)
+                    schedule(task, next);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+//MulticastGroup
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+//------------------------------------
+//Multicast delivery of one video file: its packets are sent once, to a
+//group address, whatever the number of viewers. The stream is sent by a
+//session of its own, without RTSP connection, that plays while any of the
+//member sessions plays: the viewers join a live stream instead of each
+//getting the video from its start. The RTCP reports go to the group too,
+//so that every member sees how many there are and spaces its reports as
+//RFC 3550 6.2 requires.
+//------------------------------------
+public class MulticastGroup {
+
+    static String BASE_ADDRESS = System.getProperty("rtp.mcast.base", "239.255.42.1"); //address of the first group
+    static int BASE_PORT = Integer.getInteger("rtp.mcast.port", 40000); //RTP port of the first group, RTCP on the next
+    static int TTL = Integer.getInteger("rtp.mcast.ttl", 16);
+    static String INTERFACE = System.getProperty("rtp.mcast.if"); //network interface name, else the first that fits
+
+    private static HashMap<String, MulticastGroup> groups = new HashMap<String, MulticastGroup>(); //by file, guarded by the class
+    private static int nextGroup;   //index of the next group address and port
+
+    InetAddress address;
+    int port;                       //RTP port; RTCP goes to port + 1
+    String filename;
+    Session stream;                 //sends the packets to the group
+    private ArrayList<Session> members = new ArrayList<Session>();
+    private HashSet<Session> playing = new HashSet<Session>();
+
+    //------------------------------------
+    //Add a session to the group of a file, created on the first one
+    //------------------------------------
+    public static synchronized MulticastGroup join(Session member, String filename, SessionRegistry registry) throws IOException {
+        MulticastGroup group = groups.get(filename);
+        if (group == null) {
+            group = new MulticastGroup(filename, nextGroup++, registry);
+            groups.put(filename, group);
+        }
+        group.members.add(member);
+        System.out.println("Session " + member.RTSP_ID + " joined multicast group " + group.address.getHostAddress()
+                           + ":" + group.port + ", " + group.members.size() + " members");
+        return group;
+    }
+
+    private MulticastGroup(String filename, int index, SessionRegistry registry) throws IOException {
+        this.filename = filename;
+        byte[] base = InetAddress.getByName(BASE_ADDRESS).getAddress();
+        base[3] += index;
+        address = InetAddress.getByAddress(base);
+        port = BASE_PORT + 2 * index;
+
+        stream = new Session(address, 0, null, registry);
+        stream.group = this;
+        stream.VideoFileName = filename;
+        stream.RTSP_ID = registry.newSessionId();
+        stream.state = Session.READY;
+        try {
+            stream.openStream(port);
+        } catch (IOException ioe) {
+            stream.close();
+            throw ioe;
+        }
+        RtcpDemux rtcp = RtcpDemux.shared();
+        if (rtcp != null)
+            rtcp.listen(address, port + 1);
+    }
+
+    //------------------------------------
+    //A member plays; the stream starts with the first one
+    //------------------------------------
+    public synchronized void play(Session member) {
+        playing.add(member);
+        stream.play();
+    }
+
+    //------------------------------------
+    //A member pauses; the stream stops with the last one
+    //------------------------------------
+    public synchronized void pause(Session member) {
+        playing.remove(member);
+        if (playing.isEmpty())
+            stream.pause();
+    }
+
+    //------------------------------------
+    //A member leaves; the group ends with the last one
+    //------------------------------------
+    public void leave(Session member) {
+        synchronized (MulticastGroup.class) {
+            synchronized (this) {
+                if (!members.remove(member))
+                    return;
+                pause(member);
+                if (!members.isEmpty())
+                    return;
+                groups.remove(filename);
+            }
+        }
+        RtcpDemux rtcp = RtcpDemux.shared();
+        if (rtcp != null)
+            rtcp.unlisten(address, port + 1);
+        stream.close();
+    }
+
+    public synchronized int size() {
+        return members.size();
+    }
+
+    //------------------------------------
+    //Transport header of the SETUP response, telling a member where to listen
+    //------------------------------------
+    public String transport() {
+        return "RTP/AVP;multicast;destination=" + address.getHostAddress()
+               + ";port=" + port + "-" + (port + 1) + ";ttl=" + TTL;
+    }
+
+    //------------------------------------
+    //ms until the next Sender Report: RFC 3550 6.2, the sender taking a
+    //quarter of the 5% of the stream bitrate given to RTCP
+    //------------------------------------
+    public long reportInterval(double bitrate, double avgRtcpSize, boolean initial) {
+        double seconds = RTCPpacket.interval(size() + 1, 1, true, 0.05 * bitrate / 8, avgRtcpSize, initial,
+                                             ThreadLocalRandom.current().nextDouble());
+        return (long)(seconds * 1000);
+    }
+
+    //------------------------------------
+    //Network interface multicast is sent and received on
+    //------------------------------------
+    static NetworkInterface networkInterface() throws IOException {
+        if (INTERFACE != null)
+            return NetworkInterface.getByName(INTERFACE);
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces()))
+            if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback())
+                return ni;
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+}
@@ -1,7 +1,28 @@
 import java.util.*;
 import java.nio.*;
 
-// RR: Receiver Report RTCP Packet
+// SR: Sender Report RTCP Packet (RFC 3550 6.4.1)
+
+//         0                   1                   2                   3
+//         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// header |V=2|P|    RC   |   PT=SR=200   |             length            |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                         SSRC of sender                        |
+//        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+// sender |              NTP timestamp, most significant word             |
+// info   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |             NTP timestamp, least significant word             |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                         RTP timestamp                         |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                     sender's packet count                     |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                      sender's octet count                     |
+//        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+//        |                  report blocks, as in the RR                  |
+
+// RR: Receiver Report RTCP Packet (RFC 3550 6.4.2)
 
 //         0                   1                   2                   3
 //         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
@@ -10,9 +31,9 @@ import java.nio.*;
 //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 //        |                     SSRC of packet sender                     |
 //        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
-// report |                           fraction lost                       |
+// report |                 SSRC_1 (SSRC of first source)                 |
 // block  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-//   1    |              cumulative number of packets lost                |
+//   1    | fraction lost |       cumulative number of packets lost       |
 //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 //        |           extended highest sequence number received           |
 //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
@@ -23,79 +44,248 @@ import java.nio.*;
 //        |                   delay since last SR (DLSR)                  |
 //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
+// Generic NACK: Transport layer Feedback Message (RFC 4585 6.1, 6.2.1)
+
+//         0                   1                   2                   3
+//         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// header |V=2|P| FMT=1   | PT=RTPFB=205  |             length            |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                     SSRC of packet sender                     |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |                      SSRC of media source                     |
+//        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+// FCI    |            PID                |             BLP               |
+// (1..n) +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        PID: sequence number of a packet lost, BLP: bit i set if PID+i+1 was lost too
+
 class RTCPpacket {
 
     final static int HEADER_SIZE = 8;
-    final static int BODY_SIZE = 24;
+    final static int SENDER_INFO_SIZE = 20;
+    final static int REPORT_BLOCK_SIZE = 24;
+    final static int SR = 200;
+    final static int RR = 201;
+    final static int RTPFB = 205;
+    final static int NACK = 1;                  // FMT of the Generic NACK
+    final static long NTP_OFFSET = 2208988800L; // Seconds from 1900, the NTP epoch, to 1970
+    final static double RTCP_MIN_TIME = 5;      // Minimum seconds between two reports of a participant
+    final static double SENDER_FRACTION = 0.25; // Share of the RTCP bandwidth for the senders, when they are few
 
 	public int Version;			// Version number 2
     public int Padding;			// Padding of packet
-    public int RC; 				// Reception report count = 1 for one receiver
-    public int PayloadType;		// 201 for Receiver Report
-    public int length;			// 1 source is always 32 bytes: 8 header, 24 body
+    public int RC; 				// Reception report count: number of report blocks, 0 or 1 here; FMT of a feedback message
+    public int PayloadType;		// 200 for Sender Report, 201 for Receiver Report, 205 for transport feedback
+    public int length;			// Length of the packet in 32 bit words, minus one
     public int Ssrc;			// Ssrc of sender
+
+    // Sender info, SR only
+    public long ntpTimestamp;	// Wallclock time when the report was sent, NTP format
+    public int rtpTimestamp;	// The same time, in the units of the RTP timestamps
+    public int packetCount;		// RTP data packets sent since the beginning
+    public int octetCount;		// RTP payload octets sent since the beginning
+
+    // Report block
+    public int sourceSsrc;		// Ssrc of the sender the block reports on
     public float fractionLost;	// The fraction of RTP data packets from sender lost since the previous RR packet was sent
     public int cumLost;			// The total number of RTP data packets from sender that have been lost since the beginning of reception.
-    public int highSeqNb;		// Highest sequence number received
-    public int jitter;			// Not used
-    public int LSR;				// Not used
-    public int DLSR;			// Not used
+    public int highSeqNb;		// Extended highest sequence number received
+    public int jitter;			// Interarrival jitter, in RTP timestamp units
+    public int LSR;				// Middle 32 bits of the NTP timestamp of the last SR received, 0 if none
+    public int DLSR;			// Delay between receiving that SR and sending this report, in 1/65536 s
+
+    // Generic NACK, with sourceSsrc
+    public int[] lost;			// Sequence numbers of the RTP packets lost, 16 bits
 
 	public byte[] header;	//Bitstream of header
 	public byte[] body;		//Bitstream of the body
 
-    // Constructor from field values
-    public RTCPpacket(float fractionLost, int cumLost, int highSeqNb) {
-    	Version = 2;
-    	Padding = 0;
+    // Constructor of a Receiver Report from field values
+    public RTCPpacket(int Ssrc, int sourceSsrc, float fractionLost, int cumLost, int highSeqNb,
+                      int jitter, int LSR, int DLSR) {
+    	PayloadType = RR;
     	RC = 1;
-    	PayloadType = 201;
-    	length = 32;
-    	//Other fields not used
+    	this.Ssrc = Ssrc;
 
+    	this.sourceSsrc = sourceSsrc;
     	this.fractionLost = fractionLost;
     	this.cumLost = cumLost;
     	this.highSeqNb = highSeqNb;
+    	this.jitter = jitter;
+    	this.LSR = LSR;
+    	this.DLSR = DLSR;
+
+    	build();
+    }
+
+    // Constructor of a Sender Report without report blocks from field values
+    public RTCPpacket(int Ssrc, long ntpTimestamp, int rtpTimestamp, int packetCount, int octetCount) {
+    	PayloadType = SR;
+    	RC = 0;
+    	this.Ssrc = Ssrc;
+
+    	this.ntpTimestamp = ntpTimestamp;
+    	this.rtpTimestamp = rtpTimestamp;
+    	this.packetCount = packetCount;
+    	this.octetCount = octetCount;
+
+    	build();
+    }
+
+    // Constructor of a Generic NACK asking the sender of sourceSsrc for count packets lost
+    public RTCPpacket(int Ssrc, int sourceSsrc, int[] lost, int count) {
+    	PayloadType = RTPFB;
+    	RC = NACK;
+    	this.Ssrc = Ssrc;
+
+    	this.sourceSsrc = sourceSsrc;
+    	this.lost = Arrays.copyOf(lost, count);
+
+    	build();
+    }
+
+    // Construct the bitstreams
+    private void build() {
+    	Version = 2;
+    	Padding = 0;
+    	int[] fci = PayloadType == RTPFB ? nackItems() : new int[0];
+    	int bodySize = PayloadType == RTPFB ? 4 + 4 * fci.length
+    	               : (PayloadType == SR ? SENDER_INFO_SIZE : 0) + RC * REPORT_BLOCK_SIZE;
+    	length = (HEADER_SIZE + bodySize) / 4 - 1;
 
-    	//Construct the bitstreams
     	header = new byte[HEADER_SIZE];
-    	body = new byte[BODY_SIZE];
+    	body = new byte[bodySize];
 
    		header[0] = (byte)(Version << 6 | Padding << 5 | RC);
         header[1] = (byte)(PayloadType & 0xFF);
         header[2] = (byte)(length >> 8);
-        header[3] = (byte)(length & 0xFF); 
+        header[3] = (byte)(length & 0xFF);
         header[4] = (byte)(Ssrc >> 24);
         header[5] = (byte)(Ssrc >> 16);
         header[6] = (byte)(Ssrc >> 8);
         header[7] = (byte)(Ssrc & 0xFF);
 
 		ByteBuffer bb = ByteBuffer.wrap(body);
-		bb.putFloat(fractionLost);
-		bb.putInt(cumLost);
-		bb.putInt(highSeqNb);
+		if (PayloadType == SR) {
+			bb.putLong(ntpTimestamp);
+			bb.putInt(rtpTimestamp);
+			bb.putInt(packetCount);
+			bb.putInt(octetCount);
+		}
+		if (PayloadType != RTPFB && RC > 0) {
+			// fraction lost is fixed point with the binary point at the left edge,
+			// cumulative lost a signed 24 bit count
+			int fraction = Math.max(0, Math.min(255, (int)(fractionLost * 256)));
+			int lost = Math.max(-0x800000, Math.min(0x7FFFFF, cumLost));
+			bb.putInt(sourceSsrc);
+			bb.putInt(fraction << 24 | lost & 0xFFFFFF);
+			bb.putInt(highSeqNb);
+			bb.putInt(jitter);
+			bb.putInt(LSR);
+			bb.putInt(DLSR);
+		}
+		if (PayloadType == RTPFB) {
+			bb.putInt(sourceSsrc);
+			for (int item : fci)
+				bb.putInt(item);
+		}
     }
 
-    // Constructor from bit stream
+    // The FCI of the Generic NACK: each lost packet not covered by the
+    // bitmask of an earlier item starts a new one. The sequence numbers are
+    // sorted from the oldest, so that a loss across 65535 -> 0 still packs
+    // into the bitmasks.
+    private int[] nackItems() {
+    	int oldest = lost.length > 0 ? lost[0] : 0;
+    	for (int seq : lost)
+    		if (((oldest - seq) & 0xFFFF) < 0x8000)
+    			oldest = seq;
+    	int[] seqs = new int[lost.length];
+    	for (int i = 0; i < seqs.length; i++)
+    		seqs[i] = (lost[i] - oldest) & 0xFFFF;
+    	Arrays.sort(seqs);
+    	for (int i = 0; i < seqs.length; i++)
+    		seqs[i] = (seqs[i] + oldest) & 0xFFFF;
+    	int[] items = new int[seqs.length];
+    	int n = 0;
+    	int pid = -1;
+    	for (int seq : seqs) {
+    		int d = (seq - pid) & 0xFFFF;
+    		if (n > 0 && d == 0)
+    			continue;
+    		if (n > 0 && d <= 16)
+    			items[n - 1] |= 1 << (d - 1);
+    		else {
+    			pid = seq & 0xFFFF;
+    			items[n++] = pid << 16;
+    		}
+    	}
+    	return Arrays.copyOf(items, n);
+    }
+
+    // Constructor from bit stream: the first packet of a compound packet.
+    // Fields missing from a truncated packet are left at 0.
     public RTCPpacket(byte[] packet, int packet_size) {
+    	this(packet, 0, packet_size);
+    }
 
-    	header = new byte[HEADER_SIZE];
-    	body = new byte[BODY_SIZE];
+    // Same, for the packet at offset in a compound packet; the next one
+    // follows at offset + getlength()
+    public RTCPpacket(byte[] packet, int offset, int packet_size) {
 
-        System.arraycopy(packet, 0, header, 0, HEADER_SIZE);
-        System.arraycopy(packet, HEADER_SIZE, body, 0, BODY_SIZE);
+    	header = new byte[HEADER_SIZE];
+        System.arraycopy(packet, offset, header, 0, Math.max(0, Math.min(HEADER_SIZE, packet_size - offset)));
 
     	// Parse header fields
         Version = (header[0] & 0xFF) >> 6;
+        Padding = (header[0] >> 5) & 1;
+        RC = header[0] & 0x1F;
         PayloadType = header[1] & 0xFF;
         length = (header[3] & 0xFF) + ((header[2] & 0xFF) << 8);
         Ssrc = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((header[4] & 0xFF) << 24);
 
+    	body = new byte[Math.max(0, Math.min(packet_size - offset, 4 * (length + 1)) - HEADER_SIZE)];
+        System.arraycopy(packet, offset + HEADER_SIZE, body, 0, body.length);
+
     	// Parse body fields
     	ByteBuffer bb = ByteBuffer.wrap(body); // big-endian by default
-    	fractionLost = bb.getFloat();
-    	cumLost = bb.getInt();
+    	if (PayloadType == RTPFB) {
+    		if (RC != NACK || bb.remaining() < 4)
+    			return;
+    		sourceSsrc = bb.getInt();
+    		int[] seqs = new int[17 * (bb.remaining() / 4)];
+    		int n = 0;
+    		while (bb.remaining() >= 4) {
+    			int pid = bb.getShort() & 0xFFFF;
+    			int blp = bb.getShort() & 0xFFFF;
+    			seqs[n++] = pid;
+    			for (int i = 0; i < 16; i++)
+    				if ((blp & 1 << i) != 0)
+    					seqs[n++] = (pid + i + 1) & 0xFFFF;
+    		}
+    		lost = Arrays.copyOf(seqs, n);
+    		return;
+    	}
+    	if (PayloadType == SR) {
+    		if (bb.remaining() < SENDER_INFO_SIZE)
+    			return;
+    		ntpTimestamp = bb.getLong();
+    		rtpTimestamp = bb.getInt();
+    		packetCount = bb.getInt();
+    		octetCount = bb.getInt();
+    	}
+    	else if (PayloadType != RR)
+    		return;
+    	if (RC == 0 || bb.remaining() < REPORT_BLOCK_SIZE)
+    		return;
+    	sourceSsrc = bb.getInt();
+    	int lost = bb.getInt();
+    	fractionLost = (lost >>> 24) / 256f;
+    	cumLost = lost << 8 >> 8;
     	highSeqNb = bb.getInt();
+    	jitter = bb.getInt();
+    	LSR = bb.getInt();
+    	DLSR = bb.getInt();
     }
 
     //--------------------------
@@ -105,21 +295,78 @@ class RTCPpacket {
     {
         //construct the packet = header + body
         System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
-        System.arraycopy(body, 0, packet, HEADER_SIZE, BODY_SIZE);
+        System.arraycopy(body, 0, packet, HEADER_SIZE, body.length);
 
         //return total size of the packet
-        return (BODY_SIZE + HEADER_SIZE);
+        return (body.length + HEADER_SIZE);
     }
 
     //--------------------------
     //getlength: return the total length of the RTCP packet
     //--------------------------
     public int getlength() {
-        return (BODY_SIZE + HEADER_SIZE);
+        return (body.length + HEADER_SIZE);
+    }
+
+    //--------------------------
+    //ntpTimestamp: the NTP timestamp of a wallclock time in ms
+    //--------------------------
+    static long ntpTimestamp(long millis) {
+        long seconds = millis / 1000 + NTP_OFFSET;
+        long fraction = (millis % 1000 << 32) / 1000;
+        return seconds << 32 | fraction;
+    }
+
+    //--------------------------
+    //compact: the middle 32 bits of an NTP timestamp, the form of LSR
+    //--------------------------
+    static int compact(long ntpTimestamp) {
+        return (int)(ntpTimestamp >>> 16);
+    }
+
+    //--------------------------
+    //interval: seconds until the next report of a participant (RFC 3550
+    //6.3.1 and A.7), so that the reports of all the members of a session
+    //stay within its RTCP bandwidth, in octets per second, however many
+    //they are. random is uniform in [0, 1).
+    //--------------------------
+    static double interval(int members, int senders, boolean weSent, double rtcpBandwidth,
+                           double avgRtcpSize, boolean initial, double random) {
+        double minTime = initial ? RTCP_MIN_TIME / 2 : RTCP_MIN_TIME;
+
+        //the senders, if few, share a quarter of the bandwidth, the receivers the rest
+        int n = members;
+        if (senders <= members * SENDER_FRACTION) {
+            if (weSent) {
+                rtcpBandwidth *= SENDER_FRACTION;
+                n = senders;
+            }
+            else {
+                rtcpBandwidth *= 1 - SENDER_FRACTION;
+                n -= senders;
+            }
+        }
+
+        double t = rtcpBandwidth > 0 ? avgRtcpSize * n / rtcpBandwidth : minTime;
+        if (t < minTime)
+            t = minTime;
+
+        //randomized over [0.5, 1.5] to avoid synchronized reports, and
+        //compensated for the timer reconsideration of A.7
+        t *= random + 0.5;
+        return t / (Math.E - 1.5);
     }
 
     public String toString() {
-    	return "[RTCP] Version: " + Version + ", Fraction Lost: " + fractionLost 
-    		   + ", Cumulative Lost: " + cumLost + ", Highest Seq Num: " + highSeqNb;
+    	String s = "[RTCP] Version: " + Version + ", Type: " + PayloadType + ", Ssrc: " + Ssrc;
+    	if (PayloadType == SR)
+    		s += ", NTP: " + ntpTimestamp + ", RTP TimeStamp: " + rtpTimestamp
+    		     + ", Packets: " + packetCount + ", Octets: " + octetCount;
+    	if (PayloadType == RTPFB && lost != null)
+    		return s + ", NACK: " + Arrays.toString(lost);
+    	if (RC > 0)
+    		s += ", Fraction Lost: " + fractionLost + ", Cumulative Lost: " + cumLost
+    		     + ", Highest Seq Num: " + highSeqNb + ", Jitter: " + jitter;
+    	return s;
     }
-}
\ No newline at end of file
+}
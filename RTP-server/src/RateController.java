@@ -0,0 +1,26 @@
+//RateController
+
+//------------------------------------
+//Congestion control of one session: turns the feedback of the receiver
+//into the bitrate the session should send at. The session fits the
+//quality, the frame rate and the pacing of its frames to that bitrate.
+//------------------------------------
+public interface RateController {
+
+    //------------------------------------
+    //A receiver report: fraction of the packets lost since the previous
+    //one (0 to 1), interarrival jitter and round trip time in ms, -1 when
+    //unknown. now is System.nanoTime().
+    //------------------------------------
+    void onReport(long now, float fractionLost, int jitter, int rtt);
+
+    //------------------------------------
+    //bytes sent to the receiver, at now
+    //------------------------------------
+    void onSent(long now, int bytes);
+
+    //------------------------------------
+    //bitrate to send at, in bit/s
+    //------------------------------------
+    int targetBitrate();
+}
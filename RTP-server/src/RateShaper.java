@@ -0,0 +1,84 @@
+//RateShaper
+
+//------------------------------------
+//Fits the frames of a session to the target bitrate of its RateController:
+//  - quality: the best level whose frames fit in the bytes the target
+//    allows per frame period
+//  - frame rate: when even the lowest quality does not fit, frames are
+//    skipped, on a byte credit refilled at the target rate, so that the
+//    video keeps playing in real time instead of slowing down
+//  - pacing: the packets of a frame are spread at PACING_FACTOR times the
+//    target, instead of leaving in one burst
+//------------------------------------
+public class RateShaper {
+
+    static float PACING_FACTOR = 2.5f;
+    static long BURST = 5000000L;   //ns of packets that may leave back to back
+    //guess of the size of each level, relative to the original, until measured
+    final static float[] LEVEL_RATIO = { 1f, 0.85f, 0.7f, 0.55f, 0.45f };
+
+    private RateController controller;
+    private int framePeriod;        //ms
+    private double[] size = new double[FrameCache.LEVELS]; //smoothed frame size per level, 0 until known
+    private int level;              //level of the last frame
+    private double credit;          //bytes that may be sent, may go negative
+    private long paceTime;          //nanoTime the next packet may leave at
+
+    public RateShaper(RateController controller, int framePeriod) {
+        this.controller = controller;
+        this.framePeriod = framePeriod;
+    }
+
+    //bytes the target allows per frame period
+    private double budget() {
+        return controller.targetBitrate() / 8.0 * framePeriod / 1000;
+    }
+
+    //------------------------------------
+    //Quality level for the next frame: down as soon as the current level
+    //does not fit, up one level at a time and only with some margin
+    //------------------------------------
+    public int chooseLevel() {
+        double budget = budget();
+        while (level < FrameCache.LEVELS - 1 && estimate(level) > budget)
+            level++;
+        if (level > 0 && estimate(level - 1) <= 0.8 * budget)
+            level--;
+        return level;
+    }
+
+    //expected size of the frames of a level
+    private double estimate(int l) {
+        if (size[l] > 0)
+            return size[l];
+        for (int k = 0; k < size.length; k++)
+            if (size[k] > 0)
+                return size[k] / LEVEL_RATIO[k] * LEVEL_RATIO[l];
+        return 0;
+    }
+
+    //------------------------------------
+    //The next frame is bytes long, at a level; false to skip it
+    //------------------------------------
+    public boolean admit(int level, int bytes) {
+        size[level] = size[level] == 0 ? bytes : 0.8 * size[level] + 0.2 * bytes;
+        double budget = budget();
+        credit = Math.min(credit + budget, 2 * budget);
+        if (credit < 0)
+            return false;
+        credit -= bytes;
+        return true;
+    }
+
+    //------------------------------------
+    //A packet of bytes was sent at now; returns the nanoTime the next one
+    //may leave at
+    //------------------------------------
+    public long sent(long now, int bytes) {
+        controller.onSent(now, bytes);
+        if (paceTime - (now - BURST) < 0)
+            paceTime = now - BURST;
+        paceTime += (long)(bytes * 8e9 / (PACING_FACTOR * controller.targetBitrate()));
+        return paceTime;
+    }
+}
@@ -0,0 +1,62 @@
+/* ------------------
+   Relay
+   usage: java Relay [RTSP listening port] [source] [relay port] [status period in s]
+     source: rtsp://host:port/file to relay the stream of an upstream Server,
+             or a video file to relay it from this host
+     relay port: UDP port the source stream is received on (default 24000)
+   Edge server in front of an origin Server: receives its stream once and
+   forwards it to any number of clients, which connect to it as to a
+   Server. The origin then sends one stream whatever the audience.
+   ---------------------- */
+
+import java.net.*;
+
+public class Relay
+{
+    static int RELAY_PORT = 24000;  //port the source stream is received on
+    static int STATUS_PERIOD = 10;  //seconds between two status lines
+
+    //------------------------------------
+    //main
+    //------------------------------------
+    public static void main(String argv[]) throws Exception
+    {
+        //never open a display
+        System.setProperty("java.awt.headless", "true");
+
+        final SessionRegistry registry = new SessionRegistry();
+
+        //set host name
+        String ServerHost = "127.0.0.1";
+        InetAddress serv_ipaddr = InetAddress.getByName(ServerHost);
+
+        //get RTSP socket port, source and relay port from the command line
+        int RTSPport = Integer.parseInt(argv[0]);
+        String source = argv[1];
+        int relayPort = argv.length > 2 ? Integer.parseInt(argv[2]) : RELAY_PORT;
+        final int period = argv.length > 3 ? Integer.parseInt(argv[3]) : STATUS_PERIOD;
+
+        //receive the source stream first, the sessions forward it
+        final RelayStream stream = RelayStream.start(source, relayPort, registry);
+
+        //sample the counters instead of reporting every frame
+        if (period > 0) {
+            Thread status = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(period * 1000L);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        System.out.println("[Status] " + registry.status() + ", relayed: " + stream.bitrate() / 1000 + " kbit/s");
+                    }
+                }
+            }, "status");
+            status.setDaemon(true);
+            status.start();
+        }
+
+        RtspServer.run(serv_ipaddr, RTSPport, "nio", registry);
+    }
+}
@@ -0,0 +1,89 @@
+//RelayPacket
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//------------------------------------
+//One RTP packet of the relayed stream: received once into a pooled direct
+//buffer, its header parsed once, then shared by every session it is
+//forwarded to. Each holder takes a reference; the buffer goes back to the
+//pool when the last one is released. The sessions only rewrite their own
+//RTP header in front of the payload, which is never copied.
+//------------------------------------
+public class RelayPacket {
+
+    static int MAX_PACKET_SIZE = Integer.getInteger("rtp.relay.maxpacket", 2048); //larger datagrams are dropped
+    static BufferPool pool = new BufferPool(MAX_PACKET_SIZE);
+
+    ByteBuffer data;        //the datagram, from 0 to its length
+    int length;
+    private AtomicInteger refs = new AtomicInteger(1);
+
+    //RTP header fields
+    int payloadType;
+    int marker;
+    int seq;                //16 bits
+    int timestamp;
+    int ssrc;
+    int payloadOffset;      //after the CSRC list and header extension
+
+    //position in the stream, set by the RelayStream
+    int frame;              //index of the frame the packet belongs to
+    boolean first;          //first packet received of that frame
+    long arrival;           //nanoTime it was received at
+
+    //------------------------------------
+    //A packet with an empty buffer from the pool, held once
+    //------------------------------------
+    public static RelayPacket acquire() {
+        RelayPacket p = new RelayPacket();
+        p.data = pool.acquire();
+        return p;
+    }
+
+    //------------------------------------
+    //Parse the RTP header of the datagram received into data; false if it
+    //is not an RTP packet, or was truncated
+    //------------------------------------
+    public boolean parse() {
+        length = data.position();
+        if (length < RTPpacket.HEADER_SIZE || length == data.capacity())
+            return false;
+        int b0 = data.get(0) & 0xFF;
+        if (b0 >> 6 != 2)
+            return false;
+        int b1 = data.get(1) & 0xFF;
+        marker = b1 >> 7;
+        payloadType = b1 & 0x7F;
+        seq = data.getShort(2) & 0xFFFF;
+        timestamp = data.getInt(4);
+        ssrc = data.getInt(8);
+
+        payloadOffset = RTPpacket.HEADER_SIZE + 4 * (b0 & 0x0F);
+        if ((b0 & 0x10) != 0 && payloadOffset + 4 <= length)
+            payloadOffset += 4 + 4 * (data.getShort(payloadOffset + 2) & 0xFFFF);
+        if ((b0 & 0x20) != 0)
+            length -= data.get(length - 1) & 0xFF; //padding
+        return payloadOffset <= length;
+    }
+
+    //------------------------------------
+    //A view of the payload, for one sender; the bytes are shared
+    //------------------------------------
+    public ByteBuffer payload() {
+        ByteBuffer view = data.duplicate();
+        view.limit(length).position(payloadOffset);
+        return view;
+    }
+
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            pool.release(data);
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+//RelayStream
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+//------------------------------------
+//The one stream a relay receives and fans out to its sessions: from an
+//upstream Server, set up over RTSP like a client would, or from a video
+//file, sent by a session of the relay itself. A thread receives each
+//packet once into a RelayPacket, and hands it to every session playing.
+//Each session forwards it with its own SSRC, sequence numbers and
+//timestamps, and keeps only the frames of the temporal layer its RTCP
+//feedback allows: the frames of MJPEG are all independent, so every
+//second or fourth one may be left out.
+//------------------------------------
+public class RelayStream implements Runnable {
+
+    static int LAYERS = 4;          //temporal layers: all the frames, 1 in 2, 1 in 4, 1 in 8
+    static int RATE_WINDOW = 1000;  //ms over which the bitrate of the stream is measured
+    static int RCV_BUFFER = 1 << 20; //socket receive buffer, for the bursts of a frame
+
+    private static RelayStream shared;
+
+    private DatagramChannel channel; //where the stream is received
+    private CopyOnWriteArrayList<Session> receivers = new CopyOnWriteArrayList<Session>();
+    private Socket upstream;        //RTSP connection to the upstream Server, kept open while relaying
+    private Session origin;         //or session sending the video file
+
+    //frames, and bitrate of the stream; written by the receiving thread only
+    private int frame = -1;
+    private int lastTimestamp;
+    private boolean measuring;      //a window was started
+    private long windowStart;
+    private long windowBytes;
+    private volatile int bitrate;   //bit/s, 0 until measured
+
+    //------------------------------------
+    //The stream relayed by this process, null if it is not a relay
+    //------------------------------------
+    public static synchronized RelayStream shared() {
+        return shared;
+    }
+
+    //------------------------------------
+    //Make this process a relay of a source, rtsp://host:port/file or a
+    //video file, received on a local port; starts receiving at once
+    //------------------------------------
+    public static synchronized RelayStream start(String source, int port, SessionRegistry registry) throws IOException {
+        shared = new RelayStream(port);
+        if (source.startsWith("rtsp://"))
+            shared.connect(source, port);
+        else
+            shared.open(source, port, registry);
+        Thread t = new Thread(shared, "relay");
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.start();
+        return shared;
+    }
+
+    private RelayStream(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(RCV_BUFFER);
+        channel.socket().bind(new InetSocketAddress(port));
+    }
+
+    //------------------------------------
+    //Set up and play the stream of an upstream Server, to the local port
+    //------------------------------------
+    private void connect(String url, int port) throws IOException {
+        URI uri = URI.create(url);
+        String file = uri.getPath().substring(1);
+        upstream = new Socket(uri.getHost(), uri.getPort() < 0 ? 554 : uri.getPort());
+        InputStream in = upstream.getInputStream();
+        RtspParser parser = new RtspParser();
+        ByteBuffer buffer = ByteBuffer.allocate(RtspParser.MAX_MESSAGE_SIZE);
+        buffer.flip();
+        Writer writer = new OutputStreamWriter(upstream.getOutputStream());
+
+        writer.write("SETUP " + file + " RTSP/1.0" + Session.CRLF + "CSeq: 1" + Session.CRLF
+                     + "Transport: RTP/UDP; client_port= " + port + "-" + (port + 1) + Session.CRLF + Session.CRLF);
+        writer.flush();
+        int sessionId = readResponse(in, parser, buffer);
+        writer.write("PLAY " + file + " RTSP/1.0" + Session.CRLF + "CSeq: 2" + Session.CRLF
+                     + "Session: " + sessionId + Session.CRLF + Session.CRLF);
+        writer.flush();
+        readResponse(in, parser, buffer);
+        System.out.println("Relaying " + url + ", session " + sessionId);
+    }
+
+    //the Session header of a 200 response
+    private static int readResponse(InputStream in, RtspParser parser, ByteBuffer buffer) throws IOException {
+        while (parser.parse(buffer) != RtspParser.MESSAGE) {
+            int n = in.read(buffer.array());
+            if (n < 0)
+                throw new EOFException("Upstream closed the connection");
+            buffer.position(0).limit(n);
+        }
+        if (!parser.isResponse() || parser.status() != 200)
+            throw new IOException("Upstream refused the stream: " + parser);
+        return parser.intValue("Session", -1);
+    }
+
+    //------------------------------------
+    //Send a video file to the local port, from a session of the relay
+    //------------------------------------
+    private void open(String file, int port, SessionRegistry registry) throws IOException {
+        //counted apart from the sessions of the relay
+        origin = new Session(InetAddress.getLoopbackAddress(), 0, null, new SessionRegistry());
+        origin.VideoFileName = file;
+        origin.RTSP_ID = registry.newSessionId();
+        origin.state = Session.READY;
+        origin.openStream(port);
+        origin.play();
+        System.out.println("Relaying " + file);
+    }
+
+    //------------------------------------
+    //Forward the packets to a session, until it is removed
+    //------------------------------------
+    public void add(Session session) {
+        receivers.add(session);
+    }
+
+    public void remove(Session session) {
+        receivers.remove(session);
+    }
+
+    //------------------------------------
+    //Temporal layer for a session sending at a target bitrate: the first
+    //whose share of the frames fits in it
+    //------------------------------------
+    public int layerFor(int targetBitrate) {
+        int layer = 0;
+        while (layer < LAYERS - 1 && bitrate >> layer > targetBitrate)
+            layer++;
+        return layer;
+    }
+
+    public int bitrate() {
+        return bitrate;
+    }
+
+    //------------------------------------
+    //Receive the packets, and hand each to the sessions playing
+    //------------------------------------
+    public void run() {
+        while (true) {
+            RelayPacket p = RelayPacket.acquire();
+            try {
+                channel.receive(p.data);
+            } catch (IOException ioe) {
+                p.release();
+                if (channel.isOpen())
+                    System.out.println("Exception caught: "+ioe);
+                return;
+            }
+            if (p.parse() && p.payloadType != FecEncoder.PAYLOAD_TYPE) {
+                received(p, System.nanoTime());
+                for (Session session : receivers)
+                    session.relayed(p);
+            }
+            p.release();
+        }
+    }
+
+    //------------------------------------
+    //Place a packet in the frames of the stream, and measure the bitrate
+    //------------------------------------
+    private void received(RelayPacket p, long now) {
+        p.arrival = now;
+        if (frame < 0 || p.timestamp - lastTimestamp > 0) {
+            frame++;
+            lastTimestamp = p.timestamp;
+            p.first = true;
+        }
+        p.frame = frame;
+
+        windowBytes += p.length;
+        if (!measuring) {
+            measuring = true;
+            windowStart = now;
+        }
+        long elapsed = now - windowStart;
+        if (elapsed >= TimeUnit.MILLISECONDS.toNanos(RATE_WINDOW)) {
+            bitrate = (int)(windowBytes * 8 * 1000000000L / elapsed);
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+//Requantizer
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+
+//------------------------------------
+//Lower the quality of a JPEG frame without decoding it to pixels: the
+//Huffman coded DCT coefficients are decoded, divided down to coarser
+//quantization tables and coded again. There is no color conversion, no
+//IDCT and no DCT, and the coefficients are only rounded once more.
+//Takes the frames RtpJpeg can send (baseline, YUV 4:2:2 or 4:2:0,
+//standard Huffman tables) and produces frames it can send.
+//------------------------------------
+public class Requantizer {
+
+    //standard Huffman tables (JPEG Annex K) by [class][id]: 0 DC, 1 AC / 0 luma, 1 chroma
+    private final static Huffman[][] STD = {
+        { new Huffman(JPEGHuffmanTable.StdDCLuminance), new Huffman(JPEGHuffmanTable.StdDCChrominance) },
+        { new Huffman(JPEGHuffmanTable.StdACLuminance), new Huffman(JPEGHuffmanTable.StdACChrominance) } };
+
+    private RtpJpeg jpeg = new RtpJpeg();   //descriptor of the frame
+    private int[] oldQ = new int[128];      //its tables, luma then chroma, zigzag order
+    private int[] newQ = new int[128];      //and the coarser ones
+    private int[] coef = new int[64];       //coefficients of the current block, zigzag order
+    private int[] oldPred = new int[3];     //DC predictors of the input scan
+    private int[] newPred = new int[3];     //and of the output scan
+
+    //input scan reader
+    private ByteBuffer src;
+    private int rpos;       //next byte of the scan
+    private int rend;
+    private int bitbuf;
+    private int bitcnt;
+    private boolean marker; //a marker was reached, zeros are read past it
+
+    //output scan writer
+    private byte[] out;
+    private int wpos;
+    private int wbuf;
+    private int wcnt;
+
+    //------------------------------------
+    //Requantize the JPEG frame between the position and the limit of frame
+    //to a JPEG quality (0 to 1, as ImageWriteParam) into out. Coefficients
+    //are never quantized finer than they were. Returns the length of the
+    //new frame, or -1 if the frame is not supported or does not fit in out.
+    //------------------------------------
+    public int requantize(ByteBuffer frame, float quality, byte[] out) {
+        if (!jpeg.parse(frame))
+            return -1;
+
+        //tables of the standard quality scaling, never finer than the old ones
+        int q = Math.max(1, Math.min(99, Math.round(quality * 100)));
+        byte[] target = RtpJpeg.makeTables(q);
+        for (int i = 0; i < 128; i++) {
+            oldQ[i] = jpeg.QTables[i] & 0xFF;
+            newQ[i] = Math.max(oldQ[i], target[i] & 0xFF);
+            jpeg.QTables[i] = (byte)newQ[i];
+        }
+
+        //headers, with the new tables
+        this.out = out;
+        if (out.length < RtpJpeg.MAX_HEADERS_SIZE)
+            return -1;
+        wpos = jpeg.makeheaders(out);
+        wbuf = 0;
+        wcnt = 0;
+
+        src = frame;
+        rpos = frame.position() + jpeg.ScanOffset;
+        rend = rpos + jpeg.ScanLength;
+        bitbuf = 0;
+        bitcnt = 0;
+        marker = false;
+
+        boolean ok;
+        try {
+            ok = scan();
+        } catch (IndexOutOfBoundsException e) {
+            ok = false; //corrupt scan, or output full
+        }
+        src = null;
+        this.out = null;
+        return ok ? wpos : -1;
+    }
+
+    //------------------------------------
+    //Go through the MCUs of the scan
+    //------------------------------------
+    private boolean scan() {
+        int lumaBlocks = (jpeg.Type & 0x3F) == 0 ? 2 : 4;  //4:2:2 or 4:2:0
+        int mcusX = (jpeg.Width + 1) / 2;
+        int mcusY = lumaBlocks == 2 ? jpeg.Height : (jpeg.Height + 1) / 2;
+        int mcus = mcusX * mcusY;
+        int interval = jpeg.RestartInterval;
+        int restarts = 0;
+        int mcuBytes = (lumaBlocks + 2) * 512; //most a block can take, stuffing included
+
+        for (int c = 0; c < 3; c++)
+            oldPred[c] = newPred[c] = 0;
+
+        for (int mcu = 0; mcu < mcus; mcu++) {
+            if (interval > 0 && mcu > 0 && mcu % interval == 0) {
+                //RSTn: byte aligned on both sides, DC predictions start over
+                if (!restart())
+                    return false;
+                flush();
+                out[wpos++] = (byte)0xFF;
+                out[wpos++] = (byte)(0xD0 + (restarts++ & 7));
+                for (int c = 0; c < 3; c++)
+                    oldPred[c] = newPred[c] = 0;
+            }
+            if (wpos + mcuBytes > out.length)
+                return false;
+            for (int b = 0; b < lumaBlocks; b++)
+                if (!block(0))
+                    return false;
+            if (!block(1) || !block(2))
+                return false;
+        }
+        flush();
+        out[wpos++] = (byte)0xFF;   //EOI
+        out[wpos++] = (byte)0xD9;
+        return true;
+    }
+
+    //------------------------------------
+    //Decode, requantize and code again one block of component c
+    //------------------------------------
+    private boolean block(int c) {
+        int t = c == 0 ? 0 : 1;     //luma or chroma tables
+        int q = 64 * t;
+        Huffman dc = STD[0][t];
+        Huffman ac = STD[1][t];
+
+        //decode
+        Arrays.fill(coef, 0);
+        int s = decode(dc);
+        if (s < 0)
+            return false;
+        oldPred[c] += s == 0 ? 0 : extend(bits(s), s);
+        coef[0] = requantize(oldPred[c], oldQ[q], newQ[q]);
+        for (int k = 1; k < 64; k++) {
+            int rs = decode(ac);
+            if (rs < 0)
+                return false;
+            int r = rs >> 4;
+            s = rs & 15;
+            if (s == 0) {
+                if (r != 15)
+                    break;      //EOB
+                k += 15;        //ZRL
+                continue;
+            }
+            k += r;
+            if (k > 63)
+                return false;
+            coef[k] = requantize(extend(bits(s), s), oldQ[q + k], newQ[q + k]);
+        }
+
+        //code again
+        int diff = coef[0] - newPred[c];
+        newPred[c] = coef[0];
+        s = category(diff);
+        put(dc, s);
+        if (s > 0)
+            putBits(diff < 0 ? diff - 1 : diff, s);
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int v = coef[k];
+            if (v == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                put(ac, 0xF0);  //ZRL
+                run -= 16;
+            }
+            s = category(v);
+            put(ac, (run << 4) | s);
+            putBits(v < 0 ? v - 1 : v, s);
+            run = 0;
+        }
+        if (run > 0)
+            put(ac, 0x00);      //EOB
+        return true;
+    }
+
+    //coefficient v quantized by oldq, quantized by newq instead, rounded to nearest
+    private static int requantize(int v, int oldq, int newq) {
+        if (oldq == newq)
+            return v;
+        int d = v * oldq;
+        return d >= 0 ? (d + newq / 2) / newq : -((-d + newq / 2) / newq);
+    }
+
+    //number of bits of the magnitude of v
+    private static int category(int v) {
+        return 32 - Integer.numberOfLeadingZeros(v < 0 ? -v : v);
+    }
+
+    //value of the s bit field v
+    private static int extend(int v, int s) {
+        return v < (1 << (s - 1)) ? v - (1 << s) + 1 : v;
+    }
+
+    //------------------------------------
+    //Input bits
+    //------------------------------------
+    private int bits(int n) {
+        while (bitcnt < n) {
+            int b = 0;
+            if (rpos < rend && !marker) {
+                b = src.get(rpos) & 0xFF;
+                if (b != 0xFF) {
+                    rpos++;
+                } else if (rpos + 1 < rend && src.get(rpos + 1) == 0) {
+                    rpos += 2;  //stuffed byte
+                } else {
+                    marker = true;
+                    b = 0;
+                }
+            }
+            bitbuf = (bitbuf << 8) | b;
+            bitcnt += 8;
+        }
+        bitcnt -= n;
+        return (bitbuf >>> bitcnt) & ((1 << n) - 1);
+    }
+
+    private int decode(Huffman h) {
+        int code = bits(1);
+        for (int l = 1; l <= 16; l++) {
+            if (code <= h.maxcode[l])
+                return h.values[h.valptr[l] + code - h.mincode[l]];
+            code = (code << 1) | bits(1);
+        }
+        return -1;  //not a code of the table
+    }
+
+    //skip the rest of the byte and the RSTn marker that must follow
+    private boolean restart() {
+        bitbuf = 0;
+        bitcnt = 0;
+        marker = false;
+        if (rpos + 1 >= rend || (src.get(rpos) & 0xFF) != 0xFF || (src.get(rpos + 1) & 0xF8) != 0xD0)
+            return false;
+        rpos += 2;
+        return true;
+    }
+
+    //------------------------------------
+    //Output bits
+    //------------------------------------
+    private void put(Huffman h, int symbol) {
+        putBits(h.code[symbol], h.size[symbol]);
+    }
+
+    private void putBits(int v, int n) {
+        wbuf = (wbuf << n) | (v & ((1 << n) - 1));
+        wcnt += n;
+        while (wcnt >= 8) {
+            wcnt -= 8;
+            int b = (wbuf >> wcnt) & 0xFF;
+            out[wpos++] = (byte)b;
+            if (b == 0xFF)
+                out[wpos++] = 0;    //stuffing
+        }
+    }
+
+    //pad the last byte with ones
+    private void flush() {
+        if (wcnt > 0)
+            putBits(0x7F, 8 - wcnt);
+        wbuf = 0;
+    }
+
+    //------------------------------------
+    //Huffman table, for decoding and coding
+    //------------------------------------
+    static class Huffman {
+        int[] mincode = new int[17];    //first code of each length
+        int[] maxcode = new int[17];    //last code of each length, -1 if none
+        int[] valptr = new int[17];     //index in values of the first code of each length
+        short[] values;
+        int[] code = new int[256];      //code of each symbol
+        int[] size = new int[256];      //and its length
+
+        Huffman(JPEGHuffmanTable table) {
+            short[] lengths = table.getLengths();
+            values = table.getValues();
+            int c = 0;
+            int k = 0;
+            for (int l = 1; l <= 16; l++) {
+                valptr[l] = k;
+                mincode[l] = c;
+                for (int i = 0; i < lengths[l - 1]; i++, k++, c++) {
+                    code[values[k]] = c;
+                    size[values[k]] = l;
+                }
+                maxcode[l] = lengths[l - 1] > 0 ? c - 1 : -1;
+                c <<= 1;
+            }
+        }
+    }
+}
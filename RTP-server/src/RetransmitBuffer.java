@@ -0,0 +1,88 @@
+//RetransmitBuffer
+
+import java.nio.*;
+
+//------------------------------------
+//The last packets sent to a client, kept for the Generic NACKs of its
+//RTCP feedback (RFC 4585): a packet it reports lost is sent again, as it
+//was, if it can still arrive before the client gives up on its frame.
+//The packets are copied into slots of one direct buffer, by sequence
+//number; a slot is overwritten by the packet sent HISTORY packets later.
+//------------------------------------
+public class RetransmitBuffer {
+
+    static int HISTORY = Integer.getInteger("rtp.nack.history", 512);   //packets kept per session, 0 for none
+    static int DEADLINE = Integer.getInteger("rtp.nack.deadline", 200); //ms after it was sent that a packet is
+                                                                        //still worth sending again, on arrival
+
+    private ByteBuffer[] slots;
+    private int[] seq;
+    private long[] sent;            //nanoTime sent at
+    private boolean[] again;        //sent again already
+    private long[] resent;          //nanoTime sent again at, the last time
+    private int mask;
+
+    int retransmitted;              //packets sent again
+    int late;                       //packets asked for too late, or too soon again
+
+    public RetransmitBuffer(int maxPacketSize) {
+        int size = Integer.highestOneBit(Math.max(1, HISTORY - 1)) << 1; //a power of 2, a divisor of 65536
+        mask = size - 1;
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * maxPacketSize);
+        slots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            slab.limit((i + 1) * maxPacketSize).position(i * maxPacketSize);
+            slots[i] = slab.slice();
+        }
+        seq = new int[size];
+        sent = new long[size];
+        again = new boolean[size];
+        resent = new long[size];
+        for (int i = 0; i < size; i++)
+            seq[i] = -1;
+    }
+
+    //------------------------------------
+    //Keep a packet sent at now: the headers from the position to the limit
+    //of header, then the payload; neither moves
+    //------------------------------------
+    public void add(ByteBuffer header, ByteBuffer payload, long now) {
+        int h = header.position();
+        int p = payload.position();
+        int packetSeq = header.getShort(h + 2) & 0xFFFF;
+        ByteBuffer slot = slots[packetSeq & mask];
+        slot.clear();
+        if (header.remaining() + payload.remaining() > slot.capacity()) {
+            seq[packetSeq & mask] = -1;
+            return;
+        }
+        slot.put(header).put(payload).flip();
+        header.position(h);
+        payload.position(p);
+        seq[packetSeq & mask] = packetSeq;
+        sent[packetSeq & mask] = now;
+        again[packetSeq & mask] = false;
+    }
+
+    //------------------------------------
+    //The packet with this sequence number, to send again at now to a
+    //client rtt ms away, or null: no longer kept, too late to arrive in
+    //time, or sent again less than a round trip ago already
+    //------------------------------------
+    public ByteBuffer get(int packetSeq, long now, int rtt) {
+        int i = packetSeq & mask;
+        if (seq[i] != packetSeq)
+            return null;
+        long rttNanos = Math.max(0, rtt) * 1000000L;
+        if (now - sent[i] + rttNanos / 2 > DEADLINE * 1000000L || again[i] && now - resent[i] < rttNanos) {
+            late++;
+            return null;
+        }
+        again[i] = true;
+        resent[i] = now;
+        retransmitted++;
+        ByteBuffer slot = slots[i];
+        slot.rewind();
+        return slot;
+    }
+}
@@ -0,0 +1,235 @@
+//RtcpDemux
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+//------------------------------------
+//Receiver of the RTCP packets of every session, on the one RTCP port of
+//the server, which also sends their Sender Reports. A single thread
+//drains a non-blocking channel into a reused buffer and hands each
+//report to the session it belongs to:
+//  - by the SSRC of the stream it reports on, that each session has its own,
+//  - else by the SSRC of the reporter, once it is known,
+//  - else by the address the report came from, once it is known,
+//  - else to the first session of the same client host that has no RTCP
+//    route yet; the SSRC and address are then learnt for it.
+//The RTCP of a multicast stream goes to its group instead: the demux
+//joins it, on a channel of its own that the same thread drains, and sends
+//the Sender Reports of the stream from that channel.
+//------------------------------------
+public class RtcpDemux implements Runnable {
+
+    private static RtcpDemux shared;
+    private static boolean failed; //the RTCP port could not be bound
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private byte[] buf = new byte[1500];
+    private ByteBuffer bb = ByteBuffer.wrap(buf);
+
+    //routes, guarded by this
+    private LongMap<Session> bySource = new LongMap<Session>();
+    private LongMap<Session> bySsrc = new LongMap<Session>();
+    private LongMap<Session> byAddress = new LongMap<Session>();
+    private ArrayList<Session> unrouted = new ArrayList<Session>(); //sessions without a route yet
+    private HashMap<InetSocketAddress, DatagramChannel> groups = new HashMap<InetSocketAddress, DatagramChannel>();
+    private ArrayList<DatagramChannel> joined = new ArrayList<DatagramChannel>(); //to register with the selector
+
+    //------------------------------------
+    //The receiver shared by every session of the process, bound to
+    //Session.RTCP_RCV_PORT on first use; null if that port is not available
+    //------------------------------------
+    public static synchronized RtcpDemux shared() {
+        if (shared == null && !failed) {
+            try {
+                shared = new RtcpDemux(new InetSocketAddress(Session.RTCP_RCV_PORT));
+                Thread t = new Thread(shared, "rtcp-demux");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ioe) {
+                System.out.println("RTCP port " + Session.RTCP_RCV_PORT
+                                   + " not available, no congestion feedback: " + ioe);
+                failed = true;
+            }
+        }
+        return shared;
+    }
+
+    public RtcpDemux(InetSocketAddress address) throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().bind(address);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    //------------------------------------
+    //Start routing the reports of a session; until its first report, it
+    //waits for one from its client host
+    //------------------------------------
+    public synchronized void add(Session session) {
+        bySource.put(session.rtpSender.Ssrc, session);
+        unrouted.add(session);
+    }
+
+    public synchronized void remove(Session session) {
+        unrouted.remove(session);
+        if (bySource.get(session.rtpSender.Ssrc) == session)
+            bySource.remove(session.rtpSender.Ssrc);
+        if (session.rtcpSsrc != 0 && bySsrc.get(session.rtcpSsrc) == session)
+            bySsrc.remove(session.rtcpSsrc);
+        if (session.rtcpAddress != 0 && byAddress.get(session.rtcpAddress) == session)
+            byAddress.remove(session.rtcpAddress);
+    }
+
+    //------------------------------------
+    //Receive the RTCP packets sent to a multicast group, on a port
+    //------------------------------------
+    public void listen(InetAddress group, int port) {
+        try {
+            DatagramChannel ch = DatagramChannel.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true); //the viewers on this host bind it too
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MulticastGroup.TTL);
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, MulticastGroup.networkInterface());
+            ch.bind(new InetSocketAddress(port));
+            ch.join(group, MulticastGroup.networkInterface());
+            ch.configureBlocking(false);
+            synchronized (this) {
+                groups.put(new InetSocketAddress(group, port), ch);
+                joined.add(ch);
+            }
+            selector.wakeup(); //registered by the demux thread, out of select()
+        } catch (IOException ioe) {
+            System.out.println("RTCP of group " + group.getHostAddress() + ":" + port + " not available: " + ioe);
+        }
+    }
+
+    public void unlisten(InetAddress group, int port) {
+        DatagramChannel ch;
+        synchronized (this) {
+            ch = groups.remove(new InetSocketAddress(group, port));
+        }
+        try {
+            if (ch != null)
+                ch.close();
+        } catch (IOException ioe) {
+            System.out.println("Exception caught: "+ioe);
+        }
+    }
+
+    //------------------------------------
+    //Drain the channels each time packets are ready
+    //------------------------------------
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                synchronized (this) {
+                    for (DatagramChannel ch : joined)
+                        if (ch.isOpen())
+                            ch.register(selector, SelectionKey.OP_READ);
+                    joined.clear();
+                }
+                for (SelectionKey key : selector.selectedKeys())
+                    if (key.isValid())
+                        drain((DatagramChannel)key.channel());
+                selector.selectedKeys().clear();
+            } catch (IOException ioe) {
+                System.out.println("Exception caught: "+ioe);
+            }
+        }
+    }
+
+    private void drain(DatagramChannel ch) throws IOException {
+        while (true) {
+            bb.clear();
+            InetSocketAddress from = (InetSocketAddress)ch.receive(bb);
+            if (from == null)
+                break;
+            Session session = route(from, bb.position());
+            if (session != null)
+                session.rtcpReceived(buf, bb.position());
+        }
+    }
+
+    //------------------------------------
+    //Session a report from an address belongs to, or null
+    //------------------------------------
+    private synchronized Session route(InetSocketAddress from, int length) {
+        if (length < RTCPpacket.HEADER_SIZE)
+            return null;
+        int ssrc = getInt(4);
+        long address = addressKey(from);
+
+        //report block on one of the streams
+        int type = buf[1] & 0xFF;
+        int block = type == RTCPpacket.SR ? RTCPpacket.HEADER_SIZE + RTCPpacket.SENDER_INFO_SIZE : RTCPpacket.HEADER_SIZE;
+        if ((type == RTCPpacket.SR || type == RTCPpacket.RR) && (buf[0] & 0x1F) > 0 && length >= block + 4) {
+            Session s = bySource.get(getInt(block));
+            //to a group, any host may report
+            if (s != null && (s.ClientIPAddr.equals(from.getAddress()) || s.ClientIPAddr.isMulticastAddress())) {
+                unrouted.remove(s);
+                return s;
+            }
+        }
+
+        Session s = ssrc != 0 ? bySsrc.get(ssrc) : null;
+        if (s == null)
+            s = byAddress.get(address);
+        if (s != null && s.ClientIPAddr.equals(from.getAddress())) {
+            if (ssrc != 0 && s.rtcpSsrc == 0) {
+                s.rtcpSsrc = ssrc;
+                bySsrc.put(ssrc, s);
+            }
+            return s;
+        }
+
+        //a new route: first session of that host waiting for one
+        for (int i = 0; i < unrouted.size(); i++) {
+            s = unrouted.get(i);
+            if (s.ClientIPAddr.equals(from.getAddress())) {
+                unrouted.remove(i);
+                s.rtcpAddress = address;
+                byAddress.put(address, s);
+                if (ssrc != 0) {
+                    s.rtcpSsrc = ssrc;
+                    bySsrc.put(ssrc, s);
+                }
+                return s;
+            }
+        }
+        return null;
+    }
+
+    //------------------------------------
+    //Send an RTCP packet of a session from the RTCP port of the server,
+    //or from the channel of the group it goes to
+    //------------------------------------
+    public void send(byte[] packet, int length, InetSocketAddress to) {
+        DatagramChannel ch = channel;
+        if (to.getAddress().isMulticastAddress()) {
+            synchronized (this) {
+                ch = groups.get(to);
+            }
+            if (ch == null)
+                return;
+        }
+        try {
+            ch.send(ByteBuffer.wrap(packet, 0, length), to);
+        } catch (IOException ioe) {
+            System.out.println("Exception caught: "+ioe);
+        }
+    }
+
+    private int getInt(int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    //IP address and port in a long; the address is hashed if it is not IPv4
+    private static long addressKey(InetSocketAddress a) {
+        return ((long)a.getAddress().hashCode() << 16) | a.getPort();
+    }
+}
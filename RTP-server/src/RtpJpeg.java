@@ -0,0 +1,418 @@
+//class RtpJpeg
+
+import java.nio.ByteBuffer;
+import javax.imageio.plugins.jpeg.*;
+
+// RTP Payload Format for JPEG-compressed Video (RFC 2435)
+//
+// Only the entropy coded scan of each frame is sent, split in fragments;
+// the receiver rebuilds the JPEG headers from the fields below.
+//
+// Main JPEG header, in front of every fragment:
+//
+//         0                   1                   2                   3
+//         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        | Type-specific |              Fragment Offset                  |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//        |      Type     |       Q       |     Width     |     Height    |
+//        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// Restart Marker header, when Type is 64-127:
+//
+//        |       Restart Interval        |F|L|       Restart Count       |
+//
+// Quantization Table header, in the first fragment when Q is 128-255:
+//
+//        |      MBZ      |   Precision   |             Length            |
+//        |                    Quantization Table Data                    |
+
+class RtpJpeg {
+
+    final static int HEADER_SIZE = 8;
+    final static int RESTART_HEADER_SIZE = 4;
+    final static int QTABLE_HEADER_SIZE = 4;
+    final static int TYPE_RESTART = 64;     //added to Type when restart markers are used
+    final static int Q_INBAND = 255;        //Q value telling the tables follow in band
+
+    //JPEG zigzag order: position in the zigzag sequence of each natural index
+    final static int[] ZIGZAG = {
+         0,  1,  5,  6, 14, 15, 27, 28,
+         2,  4,  7, 13, 16, 26, 29, 42,
+         3,  8, 12, 17, 25, 30, 41, 43,
+         9, 11, 18, 24, 31, 40, 44, 53,
+        10, 19, 23, 32, 39, 45, 52, 54,
+        20, 22, 33, 38, 46, 51, 55, 60,
+        21, 34, 37, 47, 50, 56, 59, 61,
+        35, 36, 48, 49, 57, 58, 62, 63 };
+
+    //Fields that compose the headers
+    public int TypeSpecific;
+    public int FragmentOffset;
+    public int Type;            //0: YUV 4:2:2, 1: YUV 4:2:0
+    public int Q;
+    public int Width;           //in 8 pixel blocks
+    public int Height;          //in 8 pixel blocks
+    public int RestartInterval;
+    public byte[] QTables;      //luma then chroma table, zigzag order, or null
+
+    //size of the headers in front of the fragment data
+    public int header_size;
+
+    //Entropy coded scan of the frame (sender side)
+    public int ScanOffset;
+    public int ScanLength;
+
+    //standard Huffman tables (JPEG Annex K) indexed by [class][id],
+    //cached as the JPEGHuffmanTable getters return copies
+    private final static short[][][] STD_LENGTHS = new short[2][2][];
+    private final static short[][][] STD_VALUES = new short[2][2][];
+    static {
+        for (int tc = 0; tc < 2; tc++)
+            for (int th = 0; th < 2; th++) {
+                STD_LENGTHS[tc][th] = standardTable(tc, th).getLengths();
+                STD_VALUES[tc][th] = standardTable(tc, th).getValues();
+            }
+    }
+
+    //scratch of parse(): DQT table positions and component tables
+    private int[] tablePos = new int[4];
+    private int[] compTable = new int[3];
+
+    //--------------------------
+    //Empty descriptor, filled by parse() for each frame to send
+    //--------------------------
+    public RtpJpeg() {
+        QTables = new byte[128];
+    }
+
+    //--------------------------
+    //Describe a JPEG frame for sending, from its JFIF bitstream between
+    //the position and the limit of jpeg. ScanOffset is relative to the position.
+    //returns false if the frame cannot be carried by RFC 2435: not baseline,
+    //not YUV 4:2:2 or 4:2:0, 16 bit tables or non-standard Huffman tables
+    //--------------------------
+    public boolean parse(ByteBuffer jpeg)
+    {
+        int base = jpeg.position();
+        int length = jpeg.remaining();
+        int pos = 2; //skip SOI
+
+        TypeSpecific = 0;
+        Width = 0;
+        RestartInterval = 0;
+        ScanOffset = 0;
+        for (int i = 0; i < 4; i++)
+            tablePos[i] = -1;
+
+        if (length < 4 || u8(jpeg, base) != 0xFF || u8(jpeg, base + 1) != 0xD8)
+            return false;
+
+        while (pos + 4 <= length) {
+            if (u8(jpeg, base + pos) != 0xFF)
+                return false;
+            int marker = u8(jpeg, base + pos + 1);
+            if (marker == 0xFF) {   //fill byte
+                pos++;
+                continue;
+            }
+            int seglen = (u8(jpeg, base + pos + 2) << 8) + u8(jpeg, base + pos + 3);
+            int seg = base + pos + 4;
+            int end = base + pos + 2 + seglen;
+            if (seglen < 2 || end > base + length)
+                return false;
+
+            if (marker == 0xDB) {           //DQT
+                for (int p = seg; p < end; p += 65) {
+                    if ((u8(jpeg, p) & 0xF0) != 0 || p + 65 > end)
+                        return false;       //16 bit table
+                    tablePos[u8(jpeg, p) & 0x03] = p + 1;
+                }
+            }
+            else if (marker == 0xC0 || marker == 0xC1) {    //SOF baseline
+                if (u8(jpeg, seg) != 8 || u8(jpeg, seg + 5) != 3)
+                    return false;
+                int height = (u8(jpeg, seg + 1) << 8) + u8(jpeg, seg + 2);
+                int width = (u8(jpeg, seg + 3) << 8) + u8(jpeg, seg + 4);
+                if (width > 2040 || height > 2040)
+                    return false;
+                Width = (width + 7) / 8;
+                Height = (height + 7) / 8;
+
+                int lumaSampling = u8(jpeg, seg + 7);
+                if (lumaSampling == 0x21)
+                    Type = 0;
+                else if (lumaSampling == 0x22)
+                    Type = 1;
+                else
+                    return false;
+                for (int c = 0; c < 3; c++) {
+                    if (c > 0 && u8(jpeg, seg + 7 + 3*c) != 0x11)
+                        return false;
+                    compTable[c] = u8(jpeg, seg + 8 + 3*c) & 0x03;
+                }
+                if (compTable[1] != compTable[2])
+                    return false;
+            }
+            else if (marker == 0xC4) {      //DHT: must be the standard tables
+                for (int p = seg; p < end; ) {
+                    int tc = (u8(jpeg, p) & 0xF0) >> 4;
+                    int th = u8(jpeg, p) & 0x0F;
+                    if (tc > 1 || th > 1)
+                        return false;
+                    short[] lengths = STD_LENGTHS[tc][th];
+                    short[] values = STD_VALUES[tc][th];
+                    if (p + 17 + values.length > end)
+                        return false;
+                    for (int i = 0; i < 16; i++)
+                        if (u8(jpeg, p + 1 + i) != lengths[i])
+                            return false;
+                    for (int i = 0; i < values.length; i++)
+                        if (u8(jpeg, p + 17 + i) != values[i])
+                            return false;
+                    p += 17 + values.length;
+                }
+            }
+            else if (marker == 0xDD) {      //DRI
+                RestartInterval = (u8(jpeg, seg) << 8) + u8(jpeg, seg + 1);
+            }
+            else if (marker == 0xDA) {      //SOS: the scan follows up to EOI
+                if (Width == 0 || tablePos[compTable[0]] < 0 || tablePos[compTable[1]] < 0)
+                    return false;
+                //luma component on tables 0, chroma components on tables 1
+                if (u8(jpeg, seg) != 3 || u8(jpeg, seg + 2) != 0x00
+                    || u8(jpeg, seg + 4) != 0x11 || u8(jpeg, seg + 6) != 0x11)
+                    return false;
+                ScanOffset = end - base;
+                int eoi = length;
+                if (u8(jpeg, base + length - 2) == 0xFF && u8(jpeg, base + length - 1) == 0xD9)
+                    eoi = length - 2;
+                ScanLength = eoi - ScanOffset;
+                break;
+            }
+            else if (marker >= 0xC2 && marker <= 0xCF) {
+                return false;               //progressive, lossless, arithmetic...
+            }
+            pos = end - base;
+        }
+        if (ScanOffset == 0)
+            return false;
+
+        if (RestartInterval > 0)
+            Type += TYPE_RESTART;
+        Q = Q_INBAND;
+        for (int i = 0; i < 64; i++) {
+            QTables[i] = jpeg.get(tablePos[compTable[0]] + i);
+            QTables[64 + i] = jpeg.get(tablePos[compTable[1]] + i);
+        }
+        return true;
+    }
+
+    private static int u8(ByteBuffer b, int i)
+    {
+        return b.get(i) & 0xFF;
+    }
+
+    //--------------------------
+    //Write the headers of the fragment starting at fragmentOffset
+    //at the position of packet; returns the number of bytes written
+    //--------------------------
+    public int writeheader(ByteBuffer packet, int fragmentOffset)
+    {
+        int start = packet.position();
+        packet.put((byte)TypeSpecific);
+        packet.put((byte)(fragmentOffset >> 16));
+        packet.put((byte)(fragmentOffset >> 8));
+        packet.put((byte)(fragmentOffset & 0xFF));
+        packet.put((byte)Type);
+        packet.put((byte)Q);
+        packet.put((byte)Width);
+        packet.put((byte)Height);
+
+        if (Type >= TYPE_RESTART) {
+            //one chunk per frame: F and L set, count 0x3FFF
+            packet.putShort((short)RestartInterval);
+            packet.put((byte)0xFF);
+            packet.put((byte)0xFF);
+        }
+
+        if (fragmentOffset == 0 && Q >= 128) {
+            packet.put((byte)0);        //MBZ
+            packet.put((byte)0);        //8 bit tables
+            packet.putShort((short)QTables.length);
+            packet.put(QTables);
+        }
+        return packet.position() - start;
+    }
+
+    //--------------------------
+    //Size of the headers written in front of the fragment starting at
+    //fragmentOffset: only the first one carries the tables
+    //--------------------------
+    public int fragmentheader_size(int fragmentOffset)
+    {
+        int size = HEADER_SIZE;
+        if (Type >= TYPE_RESTART)
+            size += RESTART_HEADER_SIZE;
+        if (fragmentOffset == 0 && Q >= 128)
+            size += QTABLE_HEADER_SIZE + QTables.length;
+        return size;
+    }
+
+    //--------------------------
+    //Constructor from the payload of a received RTP packet
+    //--------------------------
+    public RtpJpeg(byte[] payload, int payload_size)
+    {
+        int pos = 0;
+        TypeSpecific = payload[pos++] & 0xFF;
+        FragmentOffset = ((payload[pos] & 0xFF) << 16) + ((payload[pos + 1] & 0xFF) << 8) + (payload[pos + 2] & 0xFF);
+        pos += 3;
+        Type = payload[pos++] & 0xFF;
+        Q = payload[pos++] & 0xFF;
+        Width = payload[pos++] & 0xFF;
+        Height = payload[pos++] & 0xFF;
+
+        if (Type >= TYPE_RESTART && Type < 128) {
+            RestartInterval = ((payload[pos] & 0xFF) << 8) + (payload[pos + 1] & 0xFF);
+            pos += RESTART_HEADER_SIZE;
+        }
+
+        if (FragmentOffset == 0 && Q >= 128 && pos + QTABLE_HEADER_SIZE <= payload_size) {
+            int qlength = ((payload[pos + 2] & 0xFF) << 8) + (payload[pos + 3] & 0xFF);
+            pos += QTABLE_HEADER_SIZE;
+            if (qlength > 0 && pos + qlength <= payload_size) {
+                QTables = new byte[qlength];
+                System.arraycopy(payload, pos, QTables, 0, qlength);
+                pos += qlength;
+            }
+        }
+        else if (Q < 128) {
+            QTables = makeTables(Q);
+        }
+        header_size = pos;
+    }
+
+    //--------------------------
+    //Luma and chroma tables for a Q factor of 1-99 (RFC 2435 Appendix A)
+    //--------------------------
+    static byte[] makeTables(int q)
+    {
+        int factor = Math.max(1, Math.min(99, q));
+        int scale = q < 50 ? 5000 / factor : 200 - factor * 2;
+        byte[] t = new byte[128];
+        int[] luma = JPEGQTable.K1Luminance.getTable();
+        int[] chroma = JPEGQTable.K2Chrominance.getTable();
+
+        for (int i = 0; i < 64; i++) {
+            t[ZIGZAG[i]] = (byte)Math.max(1, Math.min(255, (luma[i] * scale + 50) / 100));
+            t[64 + ZIGZAG[i]] = (byte)Math.max(1, Math.min(255, (chroma[i] * scale + 50) / 100));
+        }
+        return t;
+    }
+
+    //--------------------------
+    //Rebuild the JPEG headers of the frame (RFC 2435 Appendix B) in out
+    //returns their length; the scan data and EOI follow them
+    //--------------------------
+    public int makeheaders(byte[] out)
+    {
+        int p = 0;
+        out[p++] = (byte)0xFF;              //SOI
+        out[p++] = (byte)0xD8;
+
+        //DQT: one table per 64 bytes received
+        int ntables = QTables == null ? 0 : Math.min(4, QTables.length / 64);
+        for (int i = 0; i < ntables; i++) {
+            out[p++] = (byte)0xFF;
+            out[p++] = (byte)0xDB;
+            out[p++] = 0;
+            out[p++] = 67;
+            out[p++] = (byte)i;
+            System.arraycopy(QTables, 64*i, out, p, 64);
+            p += 64;
+        }
+
+        if (RestartInterval > 0) {          //DRI
+            out[p++] = (byte)0xFF;
+            out[p++] = (byte)0xDD;
+            out[p++] = 0;
+            out[p++] = 4;
+            out[p++] = (byte)(RestartInterval >> 8);
+            out[p++] = (byte)(RestartInterval & 0xFF);
+        }
+
+        int width = Width * 8;
+        int height = Height * 8;
+        out[p++] = (byte)0xFF;              //SOF0
+        out[p++] = (byte)0xC0;
+        out[p++] = 0;
+        out[p++] = 17;
+        out[p++] = 8;
+        out[p++] = (byte)(height >> 8);
+        out[p++] = (byte)height;
+        out[p++] = (byte)(width >> 8);
+        out[p++] = (byte)width;
+        out[p++] = 3;
+        out[p++] = 0;                       //Y
+        out[p++] = (byte)((Type & 0x3F) == 0 ? 0x21 : 0x22);
+        out[p++] = 0;
+        out[p++] = 1;                       //Cb
+        out[p++] = 0x11;
+        out[p++] = (byte)(ntables > 1 ? 1 : 0);
+        out[p++] = 2;                       //Cr
+        out[p++] = 0x11;
+        out[p++] = (byte)(ntables > 1 ? 1 : 0);
+
+        p = putHuffman(out, p, JPEGHuffmanTable.StdDCLuminance, 0x00);
+        p = putHuffman(out, p, JPEGHuffmanTable.StdACLuminance, 0x10);
+        p = putHuffman(out, p, JPEGHuffmanTable.StdDCChrominance, 0x01);
+        p = putHuffman(out, p, JPEGHuffmanTable.StdACChrominance, 0x11);
+
+        out[p++] = (byte)0xFF;              //SOS
+        out[p++] = (byte)0xDA;
+        out[p++] = 0;
+        out[p++] = 12;
+        out[p++] = 3;
+        out[p++] = 0;
+        out[p++] = 0x00;
+        out[p++] = 1;
+        out[p++] = 0x11;
+        out[p++] = 2;
+        out[p++] = 0x11;
+        out[p++] = 0;
+        out[p++] = 63;
+        out[p++] = 0;
+        return p;
+    }
+
+    //largest output of makeheaders
+    final static int MAX_HEADERS_SIZE = 2 + 4 * 69 + 6 + 19 + 2 * 33 + 2 * 183 + 14;
+
+    private static int putHuffman(byte[] out, int p, JPEGHuffmanTable t, int classAndId)
+    {
+        short[] lengths = t.getLengths();
+        short[] values = t.getValues();
+        int seglen = 3 + 16 + values.length;
+        out[p++] = (byte)0xFF;
+        out[p++] = (byte)0xC4;
+        out[p++] = (byte)(seglen >> 8);
+        out[p++] = (byte)seglen;
+        out[p++] = (byte)classAndId;
+        for (int i = 0; i < 16; i++)
+            out[p++] = (byte)lengths[i];
+        for (int i = 0; i < values.length; i++)
+            out[p++] = (byte)values[i];
+        return p;
+    }
+
+    //standard table of class tc (0 DC, 1 AC) and id th (0 luma, 1 chroma)
+    private static JPEGHuffmanTable standardTable(int tc, int th)
+    {
+        if (th == 0)
+            return tc == 0 ? JPEGHuffmanTable.StdDCLuminance : JPEGHuffmanTable.StdACLuminance;
+        if (th == 1)
+            return tc == 0 ? JPEGHuffmanTable.StdDCChrominance : JPEGHuffmanTable.StdACChrominance;
+        return null;
+    }
+}
@@ -0,0 +1,192 @@
+//RtpSender
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//------------------------------------
+//Send path of the RTP packets of one session. The RTP header and the
+//payload headers are written into a pooled direct buffer, and sent with
+//a slice of the frame in one gather write on a connected DatagramChannel:
+//the payload is never copied and nothing is allocated per packet.
+//Over TCP, the packets are framed and written on the RTSP connection
+//through an InterleavedChannel instead.
+//Over UDP, a FecEncoder may follow the packets with parity packets, and
+//a RetransmitBuffer keep them to send again those the client reports lost.
+//------------------------------------
+public class RtpSender {
+
+    static int HEADER_BUFFER_SIZE = 256; //RTP header + payload format headers
+    static BufferPool headerPool = new BufferPool(HEADER_BUFFER_SIZE);
+
+    DatagramChannel channel;  //connected to the client RTP port, or to a multicast group
+    InterleavedChannel tcp;   //or the RTSP connection, null for UDP
+    int tcpChannel;           //interleaved channel number of the RTP packets
+    private ByteBuffer header;  //pooled, direct
+    private ByteBuffer[] packet = new ByteBuffer[2]; //gather: headers, payload slice
+    FecEncoder fec;           //parity of the packets sent, null for none
+    RetransmitBuffer history; //packets sent, for retransmission, null for none
+    private final ReentrantLock lock = new ReentrantLock(); //held across the writes, which may block
+
+    int Ssrc = 1337;    // Identifies the stream
+    int PayloadType;
+    int packetCount;    // RTP packets sent, for the Sender Reports
+    int octetCount;     // and their payload octets
+    int dropped;        // packets not sent: TCP output buffer full, or channel closed
+
+    public RtpSender(InetAddress addr, int port, int payloadType) throws IOException {
+        PayloadType = payloadType;
+        if (addr.isMulticastAddress()) {
+            channel = DatagramChannel.open(addr instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MulticastGroup.TTL);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, MulticastGroup.networkInterface());
+        }
+        else
+            channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(addr, port));
+        header = headerPool.acquire();
+        packet[0] = header;
+    }
+
+    public RtpSender(InterleavedChannel tcp, int tcpChannel, int payloadType) {
+        PayloadType = payloadType;
+        this.tcp = tcp;
+        this.tcpChannel = tcpChannel;
+        header = headerPool.acquire();
+        packet[0] = header;
+    }
+
+    //------------------------------------
+    //Start a packet: write its RTP header, return the header buffer
+    //positioned right after it for the payload format headers
+    //------------------------------------
+    public ByteBuffer begin(int seq, int timestamp, int marker) {
+        header.clear();
+        if (tcp != null) {
+            header.put((byte)'$');
+            header.put((byte)tcpChannel);
+            header.putShort((short)0); //length, set once known
+        }
+        header.put((byte)0x80);     //V=2, P=0, X=0, CC=0
+        header.put((byte)(marker << 7 | PayloadType & 0x7F));
+        header.putShort((short)seq);
+        header.putInt(timestamp);
+        header.putInt(Ssrc);
+        return header;
+    }
+
+    //------------------------------------
+    //Send the headers written since begin() followed by the bytes between
+    //the position and the limit of payload; returns the packet length, 0 if
+    //it was dropped
+    //------------------------------------
+    public int send(ByteBuffer payload) throws IOException {
+        lock.lock();
+        try {
+            header.flip();
+            packet[1] = payload;
+            int length = frame(payload.remaining());
+            boolean parity = fec != null && fec.add(header, payload);
+            if (history != null)
+                history.add(header, payload, System.nanoTime());
+            boolean sent = false;
+            try {
+                if (tcp != null)
+                    sent = tcp.write(packet);
+                else if (channel.isOpen()) {
+                    channel.write(packet);
+                    sent = true;
+                    if (parity)
+                        channel.write(fec.packet());
+                }
+            } catch (PortUnreachableException pue) {
+                //ICMP from an earlier packet: the client is not listening yet
+            }
+            packet[1] = null;
+            return count(sent, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Same as send(), the payload being count bytes of a file from a position,
+    //transferred from the file to the socket; only over TCP, as the file
+    //system would not keep the datagrams whole
+    //------------------------------------
+    public int send(FileChannel file, long position, int count) throws IOException {
+        lock.lock();
+        try {
+            header.flip();
+            int length = frame(count);
+            return count(tcp.write(header, file, position, count), length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------------------
+    //Send again a packet the client reported lost, if it is still kept and
+    //can arrive in time; true if it was sent
+    //------------------------------------
+    public boolean resend(int seq, int rtt) throws IOException {
+        lock.lock();
+        try {
+            if (history == null || header == null)
+                return false;
+            ByteBuffer p = history.get(seq, System.nanoTime(), rtt);
+            if (p == null)
+                return false;
+            try {
+                channel.write(p);
+            } catch (PortUnreachableException pue) {
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //set the interleaved length of the packet being sent, and return its
+    //length without the framing
+    private int frame(int payloadLength) {
+        int length = header.remaining() + payloadLength;
+        if (tcp != null) {
+            length -= InterleavedChannel.PREFIX_SIZE;
+            header.putShort(2, (short)length);
+        }
+        return length;
+    }
+
+    //count a packet of length bytes in the Sender Reports if it was sent,
+    //as dropped if not; returns what went out
+    private int count(boolean sent, int length) {
+        if (!sent) {
+            dropped++;
+            return 0;
+        }
+        packetCount++;
+        octetCount += length - RTPpacket.HEADER_SIZE;
+        return length;
+    }
+
+    //------------------------------------
+    //Close the channel and give the header buffer back to the pool
+    //------------------------------------
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (header == null)
+                return;
+            if (channel != null)
+                channel.close(); //the RTSP connection is closed with the session
+            headerPool.release(header);
+            header = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
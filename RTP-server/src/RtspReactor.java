@@ -0,0 +1,214 @@
+//RtspReactor
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//------------------------------------
+//Non-blocking RTSP control plane: one acceptor and a few selector loops
+//multiplex every control connection, parse the requests and hand them
+//to the owning Session. Each connection parses what it reads as it comes,
+//into an RtspRequest of its own reused from request to request.
+//------------------------------------
+public class RtspReactor {
+
+    static int READ_BUFFER_SIZE = 4096;  //bytes read at once
+    final static Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocketChannel listenChannel;
+    private Loop[] loops;
+    private int nextLoop;  //round robin over the loops for new connections
+    private SessionRegistry registry;
+
+    public RtspReactor(InetSocketAddress addr, int nbLoops, SessionRegistry registry) throws IOException {
+        this.registry = registry;
+
+        listenChannel = ServerSocketChannel.open();
+        listenChannel.socket().setReuseAddress(true);
+        listenChannel.bind(addr, 50);
+        listenChannel.configureBlocking(false);
+
+        loops = new Loop[nbLoops];
+        for (int i = 0; i < nbLoops; i++)
+            loops[i] = new Loop(i);
+        //the first loop also accepts the new connections
+        listenChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    //------------------------------------
+    //Start the loops; returns immediately
+    //------------------------------------
+    public void start() {
+        for (Loop loop : loops) {
+            Thread t = new Thread(loop, "rtsp-reactor-" + loop.index);
+            t.start();
+        }
+    }
+
+    //------------------------------------
+    //State kept for one control connection
+    //------------------------------------
+    class Connection {
+        SocketChannel channel;
+        Session session;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        RtspRequest request = new RtspRequest();
+        ByteBuffer out;        //response not yet fully written, or null
+        boolean closeAfterWrite;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            Socket s = channel.socket();
+            session = new Session(s.getInetAddress(), s.getLocalPort(), channel, registry);
+        }
+    }
+
+    //------------------------------------
+    //One selector thread
+    //------------------------------------
+    class Loop implements Runnable {
+        int index;
+        Selector selector;
+        ConcurrentLinkedQueue<SocketChannel> pending; //accepted, not yet registered
+
+        Loop(int index) throws IOException {
+            this.index = index;
+            selector = Selector.open();
+            pending = new ConcurrentLinkedQueue<SocketChannel>();
+        }
+
+        //hand a new connection to this loop from any thread
+        void assign(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    SocketChannel ch;
+                    while ((ch = pending.poll()) != null) {
+                        ch.configureBlocking(false);
+                        ch.register(selector, SelectionKey.OP_READ, new Connection(ch));
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        try {
+                            if (key.isAcceptable())
+                                accept();
+                            else {
+                                if (key.isReadable())
+                                    read(key);
+                                if (key.isValid() && key.isWritable())
+                                    write(key);
+                            }
+                        } catch (IOException ioe) {
+                            System.out.println("RTSP connection dropped: " + ioe);
+                            drop(key);
+                        } catch (RuntimeException re) {
+                            System.out.println("Malformed RTSP request: " + re);
+                            drop(key);
+                        }
+                    }
+                } catch (IOException ioe) {
+                    System.out.println("Exception caught in RTSP reactor: " + ioe);
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel ch;
+            while ((ch = listenChannel.accept()) != null) {
+                loops[nextLoop].assign(ch);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection)key.attachment();
+            if (conn.channel.read(conn.in) < 0) {
+                drop(key); //connection closed by the client
+                return;
+            }
+
+            //dispatch every request completed by these bytes; the parser
+            //keeps what it took of the next one
+            RtspRequest request = conn.request;
+            conn.in.flip();
+            while (request.parse(conn.in)) {
+                String response = conn.session.handle(request);
+                if (response != null)
+                    send(key, conn, response);
+                if (request.type == Session.TEARDOWN && response != null)
+                    conn.closeAfterWrite = true;
+            }
+            conn.in.clear();
+            if (conn.closeAfterWrite && conn.out == null
+                && (conn.session.interleaved == null || conn.session.interleaved.isEmpty()))
+                drop(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            Connection conn = (Connection)key.attachment();
+            InterleavedChannel tcp = conn.session.interleaved;
+            if (tcp != null) {
+                //media and responses share the output buffer of the session
+                if (tcp.flush() && conn.closeAfterWrite)
+                    drop(key);
+                return;
+            }
+            conn.channel.write(conn.out);
+            if (!conn.out.hasRemaining()) {
+                conn.out = null;
+                key.interestOps(SelectionKey.OP_READ);
+                if (conn.closeAfterWrite)
+                    drop(key);
+            }
+        }
+
+        private void send(SelectionKey key, Connection conn, String response) throws IOException {
+            ByteBuffer bytes = ASCII.encode(response);
+            InterleavedChannel tcp = conn.session.interleaved;
+            if (tcp != null) {
+                //queued behind the packets being written on the connection
+                tcp.key = key;
+                tcp.writeControl(bytes);
+                System.out.println("RTSP Server - Sent response to Client.");
+                return;
+            }
+            if (conn.out != null) {
+                //still writing a previous response: queue behind it
+                ByteBuffer joined = ByteBuffer.allocate(conn.out.remaining() + bytes.remaining());
+                joined.put(conn.out).put(bytes).flip();
+                conn.out = joined;
+                return;
+            }
+            conn.channel.write(bytes);
+            if (bytes.hasRemaining()) {
+                conn.out = bytes;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else
+                System.out.println("RTSP Server - Sent response to Client.");
+        }
+
+        private void drop(SelectionKey key) {
+            Connection conn = (Connection)key.attachment();
+            if (conn == null)
+                return; //never drop the listening channel
+            key.cancel();
+            conn.session.close();
+        }
+    }
+}
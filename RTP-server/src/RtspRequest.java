@@ -0,0 +1,97 @@
+//RtspRequest
+
+import java.io.*;
+import java.nio.*;
+
+//------------------------------------
+//The requests of one RTSP connection, one at a time: method, URI and the
+//headers the server uses. A packet interleaved on the connection ('$',
+//channel, length) is read as a request too, of type Session.INTERLEAVED.
+//The object and its RtspParser are reused from request to request, so
+//that reading them creates no garbage.
+//------------------------------------
+public class RtspRequest {
+
+    static boolean LOG_REQUESTS = Boolean.getBoolean("rtp.logrtsp"); //print each request received
+
+    int type = -1;          //SETUP, PLAY, ... as defined in Session, -1 if unknown
+    int cseq = -1;          //CSeq header
+    int sessionId = -1;     //Session header, -1 if absent
+    int clientPort = -1;    //client_port of the Transport header, -1 if absent
+    boolean multicast;      //the Transport header asks for multicast delivery
+    int interleaved = -1;   //first channel of the interleaved= parameter of the Transport header,
+                            //or channel of an interleaved packet; -1 if absent
+    byte[] data;            //bytes of an interleaved packet, from 0 to length
+    int length;
+
+    private RtspParser parser = new RtspParser();
+
+    //------------------------------------
+    //Parse the bytes of in from its position to its limit, up to the end
+    //of the next request: true once one is complete, its fields then set;
+    //false once all the bytes are parsed without completing one
+    //------------------------------------
+    public boolean parse(ByteBuffer in) throws IOException {
+        int found = parser.parse(in);
+        if (found == RtspParser.MORE)
+            return false;
+        if (found == RtspParser.PACKET) {
+            type = Session.INTERLEAVED;
+            interleaved = parser.channel;
+            data = parser.data;
+            length = parser.length;
+            return true;
+        }
+
+        if (parser.method("SETUP"))
+            type = Session.SETUP;
+        else if (parser.method("PLAY"))
+            type = Session.PLAY;
+        else if (parser.method("PAUSE"))
+            type = Session.PAUSE;
+        else if (parser.method("TEARDOWN"))
+            type = Session.TEARDOWN;
+        else if (parser.method("DESCRIBE"))
+            type = Session.DESCRIBE;
+        else if (parser.method("OPTIONS"))
+            type = Session.OPTIONS;
+        else
+            type = -1;
+
+        //headers, in any order
+        cseq = parser.intValue("CSeq", -1);
+        sessionId = parser.intValue("Session", -1);
+        clientPort = parser.intParam("Transport", "client_port", -1);
+        multicast = parser.hasParam("Transport", "multicast");
+        interleaved = parser.intParam("Transport", "interleaved", -1);
+
+        if (LOG_REQUESTS) {
+            System.out.println("RTSP Server - Received from Client:");
+            System.out.println(parser);
+        }
+        return true;
+    }
+
+    //------------------------------------
+    //Read the next request from a blocking stream, through buffer, which
+    //keeps the bytes read past it; false once the connection is closed
+    //------------------------------------
+    public boolean read(InputStream in, ByteBuffer buffer) throws IOException {
+        while (!parse(buffer)) {
+            int n = in.read(buffer.array());
+            if (n < 0)
+                return false;
+            buffer.position(0).limit(n);
+        }
+        return true;
+    }
+
+    //the video file named in the request line
+    public String uri() {
+        return parser.uri();
+    }
+
+    public String method() {
+        return parser.method();
+    }
+}
@@ -0,0 +1,56 @@
+//RtspServer
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+//------------------------------------
+//Accepts the RTSP connections and runs their sessions in one of the
+//execution modes. Uses no AWT or Swing, so it also runs on hosts
+//without a display.
+//------------------------------------
+public class RtspServer {
+
+    static int RTSP_POOL_SIZE = 5; //threads serving blocking RTSP connections in pool mode
+    static int REACTOR_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    //------------------------------------
+    //Serve RTSP on addr:port in the given mode (nio, pool or virtual).
+    //Returns at once in nio mode, otherwise runs the accept loop forever.
+    //------------------------------------
+    public static void run(InetAddress addr, int port, String mode, SessionRegistry registry) throws IOException
+    {
+        if (mode.equals("nio")) {
+            //multiplex all control connections on a few selector threads
+            RtspReactor reactor = new RtspReactor(new InetSocketAddress(addr, port), REACTOR_LOOPS, registry);
+            reactor.start();
+            return;
+        }
+
+        //Initiate TCP connection with the client for the RTSP session
+        @SuppressWarnings("resource")
+        ServerSocket listenSocket = new ServerSocket(port, 5, addr);
+        listenSocket.setReuseAddress(true);
+
+        if (mode.equals("virtual")) {
+            //every session, its frame loop and its RTCP loop on their own virtual threads
+            ThreadFactory threads = SessionThreads.newFactory("session", true);
+            while(true) {
+                Session session = new Session(listenSocket.accept(), registry);
+                session.threads = threads;
+                threads.newThread(session).start();
+            }
+        }
+
+        //Executor pool for threads
+        Executor pool = Executors.newFixedThreadPool(RTSP_POOL_SIZE);
+
+        //accept and run one session per connection
+        while(true) {
+            Socket RTSPsocket = listenSocket.accept();
+            pool.execute(new Session(RTSPsocket, registry));
+        }
+    }
+}
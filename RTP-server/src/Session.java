@@ -0,0 +1,990 @@
+//Session
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+//------------------------------------
+//One RTSP session: owns the control connection, the RTP socket,
+//the video stream and the send schedule of a single client.
+//A client asking for multicast gets none of these but joins the
+//MulticastGroup of the file, whose stream is sent by a session of its own.
+//In a relay, the session has no video either: it forwards the packets of
+//the RelayStream.
+//------------------------------------
+public class Session implements Runnable
+{
+    //Video constants:
+    //----------------
+    static int MJPEG_TYPE = 26; //RTP payload type for MJPEG video
+    static int FRAME_PERIOD = 100; //Frame period of the video to stream, in ms
+    static int RTP_CLOCK = 90000; //RTP timestamp units per second, 90 kHz for video (RFC 2435)
+    final static int MAX_FRAME_SIZE = 99999; //largest frame the 5 digit length prefix allows
+    static int MTU = Integer.getInteger("rtp.mtu", 1400); //largest IP datagram sent, set with -Drtp.mtu=
+    final static int IP_UDP_HEADER_SIZE = 28;
+    static int MAX_LATENESS = 1000; //ms behind schedule after which sending restarts from now
+    static int MAX_RELAY_QUEUE = 512; //relayed packets waiting for the media loop of a session
+                                    //instead of bursting the missed frames
+    static boolean LOG_FRAMES = Boolean.getBoolean("rtp.logframes"); //print a line per frame sent
+
+    //RTSP constants
+    //----------------
+    //rtsp states
+    final static int INIT = 0;
+    final static int READY = 1;
+    final static int PLAYING = 2;
+    //rtsp message types
+    final static int SETUP = 3;
+    final static int PLAY = 4;
+    final static int PAUSE = 5;
+    final static int TEARDOWN = 6;
+    final static int DESCRIBE = 7;
+    final static int INTERLEAVED = 8; //not a request: RTCP packet interleaved on the connection
+    final static int OPTIONS = 9;
+
+    //RTCP constants
+    //----------------
+    static int RTCP_RCV_PORT = 19001; //port where the server will receive the RTCP packets
+    static int SR_PERIOD = 1000; //ms between two Sender Reports while sending
+    static String RATE_CONTROL = System.getProperty("rtp.ratecontrol", "aimd"); //aimd or fixed
+
+    final static String CRLF = "\r\n";
+
+    //RTP variables:
+    //----------------
+    RtpSender rtpSender; //sends the RTP packets to the client
+    int rtpSeqNb; //extended sequence number of the last RTP packet sent; its low 16 bits go on the wire
+    int rtpTimestampBase; //RTP timestamp of the first frame
+    RtpJpeg jpeg; //RFC 2435 headers of the frame being sent
+
+    InetAddress ClientIPAddr;   //Client IP address
+    int RTP_dest_port = 0;      //destination port for RTP packets  (given by the RTSP Client)
+    int RTSP_dest_port = 0;     //RTSP port the session was accepted on
+
+    //Video variables:
+    //----------------
+    int imagenb = 0; //image nb of the image currently transmitted
+    FrameCache.Video video; //video file, shared through the frame cache
+    Lookahead lookahead; //frames transcoded ahead of the sender under congestion
+
+    MediaScheduler scheduler; //media loops sending the frames at the video frame rate
+    MediaScheduler.Task frameTask; //scheduled task while PLAYING
+    long frameDeadline; //when the frame being sent was due
+    ThreadFactory threads; //if set, frames are sent by a blocking loop
+                           //on threads of this factory instead of by the scheduler
+    Thread sender;  //thread running the FrameLoop while PLAYING
+    final ReentrantLock lock = new ReentrantLock(); //state of the session, held while sending: a virtual
+                                                    //thread that blocks holding it is not pinned to its carrier
+    byte[] buf;     //buffer used to store the images re-encoded before sending
+    ByteBuffer frameBuf; //buf, sliced into the RTP payloads
+
+    //frame being sent, pinned in the cache, null between frames
+    FrameCache.Frame sending;
+    ByteBuffer sendData; //its bytes: the cached frame or frameBuf
+    FileChannel sendFile; //over TCP, the video file its scan is sent from if the frame is sent unmodified
+    long sendFileScan;  //file offset of the scan
+    int scanStart;      //position of its scan in sendData
+    int scanOffset;     //scan bytes already sent
+    int frameBytes;     //bytes sent for it
+    int framePackets;
+
+    //RTSP variables
+    //----------------
+    volatile int state; //RTSP Server state == INIT or READY or PLAY
+    Socket RTSPsocket; //socket used to send/receive RTSP messages, null when driven by the reactor
+    Closeable control; //the RTSP connection, whichever way it is driven
+    volatile boolean closed; //set once the session released its resources
+    //input and output stream filters
+    InputStream RTSPInputStream;
+    BufferedWriter RTSPBufferedWriter;
+    String VideoFileName; //video file requested from the client
+    int RTSP_ID; //ID of the RTSP session, 0 until SETUP
+    int RTSPSeqNb = 0; //Sequence number of RTSP messages within the session
+
+    //RTCP variables
+    //----------------
+    RtcpDemux rtcp; //receives the RTCP packets of all the sessions, null if unavailable
+    long rtcpAddress; //RTCP route of the session, set by the demux
+    int rtcpSsrc;
+    InetSocketAddress rtcpDest; //where the Sender Reports go: the client RTP port + 1
+    InterleavedChannel interleaved; //or the RTSP connection, when the client asked for RTP over TCP
+    int rtpChannel;     //interleaved channel of the RTP packets, the next one carries RTCP
+    boolean reported; //a Sender Report was sent
+    long lastReport; //nanoTime of the last one
+    long reportInterval; //ns from it to the next one
+    double avgRtcpSize = IP_UDP_HEADER_SIZE + RTCPpacket.HEADER_SIZE + RTCPpacket.SENDER_INFO_SIZE;
+                         //average size of the RTCP packets of the stream, with their IP and UDP headers
+    volatile int rtt = -1; //round trip time to the client in ms, -1 until measured
+
+    //Performance optimization and Congestion control
+    ImageTranslator imgTranslator; //created on the first frame that is not RTP/JPEG ready,
+                                   //so most sessions never load ImageIO
+    RateController rate; //target bitrate, from the RTCP feedback
+    RateShaper shaper;   //fits the quality, frame rate and pacing to it
+    int congestionLevel; //quality level of the frames being sent
+
+    //Sessions sharing this process, and their counters
+    SessionRegistry registry;
+    MulticastGroup group; //group the session views, or whose stream it sends; null for unicast
+
+    //Relay
+    RelayStream relay;  //stream the session forwards when the process is a relay, else null
+    RelayTask relayTask; //forwards it while PLAYING
+    boolean relayForward; //the frame being received is forwarded
+    boolean relayStarted; //a frame was forwarded already
+    int relayTimestampDelta; //from the timestamps of the stream to those of the session
+
+    //--------------------------------
+    //Constructor
+    //--------------------------------
+    public Session(Socket socket, SessionRegistry registry) {
+        this(socket.getInetAddress(), socket.getLocalPort(), socket, registry);
+        this.RTSPsocket = socket;
+    }
+
+    public Session(InetAddress clientAddr, int rtspPort, Closeable control, SessionRegistry registry) {
+        this.control = control;
+        this.registry = registry;
+
+        //Get Client IP address
+        ClientIPAddr = clientAddr;
+        RTSP_dest_port = rtspPort;
+
+        //init RTP sending schedule
+        scheduler = MediaScheduler.shared();
+
+        //init congestion controller; a multicast stream cannot follow
+        //the feedback of each of its receivers, and is sent at a fixed rate
+        if ("fixed".equals(RATE_CONTROL) || clientAddr.isMulticastAddress())
+            rate = new FixedRateController(AimdRateController.MAX_BITRATE);
+        else
+            rate = new AimdRateController();
+        shaper = new RateShaper(rate, FRAME_PERIOD);
+
+        //allocate memory for the sending buffers
+        buf = new byte[MAX_FRAME_SIZE];
+        frameBuf = ByteBuffer.wrap(buf);
+        jpeg = new RtpJpeg();
+
+        //Initiate RTSPstate
+        state = INIT;
+    }
+
+    //------------------------------------
+    //Handle the RTSP requests of the client on a blocking socket until TEARDOWN
+    //------------------------------------
+    public void run() {
+        //Set input and output stream filters:
+        try {
+            RTSPInputStream = RTSPsocket.getInputStream();
+            RTSPBufferedWriter = new BufferedWriter(new OutputStreamWriter(RTSPsocket.getOutputStream()) );
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return;
+        }
+
+        RtspRequest request = new RtspRequest();
+        ByteBuffer in = ByteBuffer.allocate(RtspParser.MAX_MESSAGE_SIZE);
+        in.flip();
+        while (!closed) {
+            try {
+                if (!request.read(RTSPInputStream, in)) { //blocking
+                    close(); //connection closed by the client
+                    return;
+                }
+
+                String response = handle(request);
+                if (response != null) {
+                    if (interleaved != null)
+                        interleaved.writeControl(RtspReactor.ASCII.encode(response)); //between the packets
+                    else {
+                        RTSPBufferedWriter.write(response);
+                        RTSPBufferedWriter.flush();
+                    }
+                    System.out.println("RTSP Server - Sent response to Client.");
+                }
+                if (request.type == TEARDOWN && response != null)
+                    close();
+            } catch (Exception ex) {
+                System.out.println("Exception caught: "+ex);
+                close();
+            }
+        }
+    }
+
+    //------------------------------------
+    //Apply one RTSP request to the session state
+    //returns the response to send back, or null if the request is ignored.
+    //After a TEARDOWN the caller sends the response, then calls close().
+    //------------------------------------
+    public String handle(RtspRequest request) {
+        lock.lock();
+        try {
+            return apply(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String apply(RtspRequest request) {
+        int request_type = request.type;
+        if (request_type == INTERLEAVED) {
+            //RTCP of the client over TCP
+            if (interleaved != null && request.interleaved == rtpChannel + 1)
+                rtcpReceived(request.data, request.length);
+            return null;
+        }
+        RTSPSeqNb = request.cseq;
+        if (RTSP_ID != 0 && request.sessionId >= 0 && request.sessionId != RTSP_ID)
+            System.out.println("Session " + RTSP_ID + " - request for unknown session " + request.sessionId);
+
+        //what the server supports, which standard clients ask first; the
+        //methods it does not know are refused rather than left unanswered
+        if (request_type == OPTIONS)
+            return response("Public: DESCRIBE, SETUP, TEARDOWN, PLAY, PAUSE" + CRLF);
+        if (request_type < 0) {
+            System.out.println("Session " + RTSP_ID + " - unsupported request " + request.method());
+            return status("501 Not Implemented");
+        }
+        //the description of the stream, asked before SETUP as well
+        if (request_type == DESCRIBE) {
+            System.out.println("Received DESCRIBE request");
+            return describeResponse(request.uri());
+        }
+
+        //Wait for the SETUP message from the client
+        if (RTSP_ID == 0) {
+            if (request_type != SETUP)
+                return null;
+
+            VideoFileName = request.uri();
+            RTP_dest_port = request.clientPort;
+
+            //allocate the session ID and publish the session
+            RTSP_ID = registry.newSessionId();
+            registry.add(this);
+
+            //update RTSP state
+            state = READY;
+            System.out.println("Session " + RTSP_ID + " - New RTSP state: READY");
+
+            //join the multicast stream of the file if asked for, else
+            //or if it cannot be set up, send a stream of its own
+            relay = RelayStream.shared();
+            if (request.interleaved >= 0) {
+                //RTP and RTCP on this connection, on the channels the client gave
+                try {
+                    rtpChannel = request.interleaved;
+                    interleaved = new InterleavedChannel(RTSPsocket != null ? Channels.newChannel(RTSPsocket.getOutputStream())
+                                                                           : (WritableByteChannel)control);
+                    openStream(RTP_dest_port);
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+                return response("Transport: RTP/AVP/TCP;unicast;interleaved=" + rtpChannel + "-" + (rtpChannel + 1) + CRLF);
+            }
+            if (request.multicast && relay == null) {
+                try {
+                    group = MulticastGroup.join(this, VideoFileName, registry);
+                    return response("Transport: " + group.transport() + CRLF);
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                openStream(RTP_dest_port);
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+            if (request.multicast)
+                return response("Transport: RTP/AVP;unicast;client_port=" + RTP_dest_port + "-" + (RTP_dest_port + 1) + CRLF);
+            return response();
+        }
+
+        if ((request_type == PLAY) && (state == READY)) {
+            //update state
+            if (group != null) {
+                state = PLAYING;
+                group.play(this);
+            }
+            else
+                play();
+            System.out.println("Session " + RTSP_ID + " - New RTSP state: PLAYING");
+            return response();
+        }
+        else if ((request_type == PAUSE) && (state == PLAYING)) {
+            //update state
+            if (group != null) {
+                state = READY;
+                group.pause(this);
+            }
+            else
+                pause();
+            System.out.println("Session " + RTSP_ID + " - New RTSP state: READY");
+            return response();
+        }
+        else if (request_type == TEARDOWN) {
+            state = INIT;
+            stopSending();
+            return response();
+        }
+        return null;
+    }
+
+    //------------------------------------
+    //Open the video and the RTP stream to a port of the client address,
+    //and route the RTCP reports on it to the session
+    //------------------------------------
+    void openStream(int port) throws IOException {
+        //open the video file, unless the packets come from the relayed stream
+        if (relay == null) {
+            video = FrameCache.shared().open(VideoFileName);
+            lookahead = new Lookahead(video);
+        }
+
+        //init RTP sockets, with an SSRC of its own for the stream
+        if (interleaved != null)
+            rtpSender = new RtpSender(interleaved, rtpChannel, MJPEG_TYPE);
+        else
+            rtpSender = new RtpSender(ClientIPAddr, port, MJPEG_TYPE);
+        do {
+            rtpSender.Ssrc = ThreadLocalRandom.current().nextInt();
+        } while (rtpSender.Ssrc == 0);
+        //random first sequence number and timestamp, as RFC 3550 advises
+        rtpSeqNb = ThreadLocalRandom.current().nextInt(65536);
+        rtpTimestampBase = ThreadLocalRandom.current().nextInt();
+        if (interleaved != null)
+            return; //RTCP on the connection too, and no loss to correct
+        if (FecEncoder.ENABLED) {
+            rtpSender.fec = new FecEncoder(MTU - IP_UDP_HEADER_SIZE - RTPpacket.HEADER_SIZE - FecEncoder.OVERHEAD);
+            do {
+                rtpSender.fec.Ssrc = ThreadLocalRandom.current().nextInt();
+            } while (rtpSender.fec.Ssrc == 0 || rtpSender.fec.Ssrc == rtpSender.Ssrc);
+        }
+        if (RetransmitBuffer.HISTORY > 0)
+            rtpSender.history = new RetransmitBuffer(MTU);
+
+        //route the RTCP reports of the client to this session
+        rtcpDest = new InetSocketAddress(ClientIPAddr, port + 1);
+        rtcp = RtcpDemux.shared();
+        if (rtcp != null)
+            rtcp.add(this);
+    }
+
+    //------------------------------------
+    //Start and stop sending the stream: READY to PLAYING and back
+    //------------------------------------
+    void play() {
+        if (state != READY)
+            return;
+        state = PLAYING;
+        startSending();
+    }
+
+    void pause() {
+        if (state != PLAYING)
+            return;
+        state = READY;
+        stopSending();
+    }
+
+    //------------------------------------
+    //Stop sending and release everything the session owns
+    //------------------------------------
+    public void close() {
+        //leave the multicast group first: its last member closes its stream
+        if (group != null && group.stream != this && !closed)
+            group.leave(this);
+        lock.lock();
+        try {
+            closeStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeStream() {
+        if (closed)
+            return;
+        closed = true;
+        state = INIT;
+        stopSending();
+        releaseFrame();
+        registry.remove(this);
+        if (rtcp != null)
+            rtcp.remove(this);
+
+        //close sockets
+        try {
+            if (control != null)
+                control.close();
+            if (rtpSender != null)
+                rtpSender.close();
+            if (video != null)
+                video.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println("Session " + RTSP_ID + " closed");
+    }
+
+    //------------------------------------
+    //Start the frame schedule; the state must already be PLAYING
+    //------------------------------------
+    private void startSending() {
+        if (relay != null) {
+            relayTask = new RelayTask();
+            relay.add(this);
+            return;
+        }
+        if (threads == null) {
+            frameTask = new FrameTask();
+            scheduler.loopFor(RTSP_ID).schedule(frameTask, System.nanoTime());
+            return;
+        }
+        sender = threads.newThread(new FrameLoop());
+        sender.start();
+    }
+
+    //------------------------------------
+    //Stop it; the state must already have left PLAYING. A frame partly sent
+    //is finished when sending starts again.
+    //------------------------------------
+    private void stopSending() {
+        if (relayTask != null) {
+            relay.remove(this);
+            relayTask.cancel();
+            relayTask.clear();
+            relayTask = null;
+        }
+        if (frameTask != null) {
+            frameTask.cancel();
+            frameTask = null;
+        }
+        if (sender != null) {
+            sender.interrupt();
+            sender = null;
+        }
+    }
+
+    //------------------------------------
+    //Deadline of the frame after the one due at deadline. Deadlines advance
+    //by the frame period from the previous deadline, not from the time the
+    //frame actually went out, so the schedule does not drift.
+    //------------------------------------
+    private long nextDeadline(long deadline) {
+        long next = deadline + TimeUnit.MILLISECONDS.toNanos(FRAME_PERIOD);
+        long now = System.nanoTime();
+        if (now - next > TimeUnit.MILLISECONDS.toNanos(MAX_LATENESS))
+            next = now; //too far behind, restart the schedule from now
+        return next;
+    }
+
+    //------------------------
+    //Send the frames from a media loop at the video frame rate
+    //------------------------
+    class FrameTask extends MediaScheduler.Task {
+        public long run(long deadline) {
+            return step(deadline);
+        }
+
+        //the session would never send again: end it
+        public void failed(Throwable t) {
+            close();
+        }
+    }
+
+    //------------------------
+    //Send the frames on a dedicated thread at the video frame rate
+    //------------------------
+    class FrameLoop implements Runnable {
+        public void run() {
+            long deadline = System.nanoTime();
+            while ((deadline = step(deadline)) != MediaScheduler.Task.DONE) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(deadline - System.nanoTime());
+                } catch (InterruptedException ie) {
+                    return; //PAUSE or TEARDOWN
+                }
+            }
+        }
+    }
+
+    //------------------------
+    //Send what is due at deadline: start the next frame if none is being
+    //sent, then its packets as far as the pacing allows. Returns when to
+    //come back: to go on with the frame, or for the next one; or DONE.
+    //------------------------
+    long step(long deadline) {
+        lock.lock();
+        try {
+            if (state != PLAYING || closed)
+                return MediaScheduler.Task.DONE;
+            if (sending == null) {
+                if (imagenb >= video.framecount())
+                    return MediaScheduler.Task.DONE;
+                frameDeadline = deadline;
+                if (!startFrame())
+                    return nextDeadline(frameDeadline); //skipped, or end of the file
+            }
+            long resume = sendPackets();
+            if (resume != 0)
+                return resume;
+            finishFrame();
+            sendReport(timestamp(imagenb), frameDeadline);
+            return nextDeadline(frameDeadline);
+        }
+        catch(Exception ex) {
+            ex.printStackTrace();
+            close();
+            return MediaScheduler.Task.DONE;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------
+    //Get the next frame of the video ready to send, at the quality the
+    //target bitrate allows; false if it is skipped
+    //------------------------
+    private boolean startFrame() throws IOException {
+        //update current imagenb
+        imagenb++;
+
+        //get next frame to send from the video, pinned in the frame cache
+        FrameCache.Frame frame = video.acquire(imagenb - 1);
+        if (frame == null)
+            return false; //end of the video file
+
+        //lower the quality if the target bitrate requires it: the lower quality
+        //version comes from the cache, and until it has been transcoded in the
+        //background the frame is sent as it is
+        int level = shaper.chooseLevel();
+        congestionLevel = level;
+        lookahead.advance(imagenb - 1, level);
+        int sentLevel = 0;
+        if (level > 0) {
+            FrameCache.Frame lower = video.acquire(imagenb - 1, level);
+            if (lower != null) {
+                video.release(frame);
+                frame = lower;
+                sentLevel = level;
+            }
+        }
+
+        //skip the frame if even so it does not fit in the bitrate
+        ByteBuffer data = frame.data;
+        int image_length = data.remaining();
+        if (!shaper.admit(sentLevel, image_length)) {
+            video.release(frame);
+            registry.framesSkipped.incrementAndGet();
+            return false;
+        }
+
+        //RFC 2435 only carries baseline YUV frames with the standard Huffman
+        //tables; bring any other frame to that form first
+        if (!jpeg.parse(data)) {
+            if (imgTranslator == null)
+                imgTranslator = new ImageTranslator(0.8f);
+            data.get(buf, 0, image_length);
+            image_length = imgTranslator.compress(buf, image_length);
+            data = frameBuf;
+            if (image_length > 0)
+                data.limit(image_length).position(0);
+            if (image_length <= 0 || !jpeg.parse(data)) {
+                System.out.println("Frame #" + imagenb + " cannot be sent as RTP/JPEG, skipped");
+                video.release(frame);
+                return false;
+            }
+        }
+
+        sending = frame;
+        sendData = data;
+        //over TCP, the scan of an unmodified frame goes from the file to the socket
+        sendFile = null;
+        if (interleaved != null && sentLevel == 0 && data == frame.data) {
+            sendFile = video.stream.channel;
+            sendFileScan = video.stream.offset[imagenb - 1] + jpeg.ScanOffset;
+        }
+        scanStart = data.position() + jpeg.ScanOffset;
+        scanOffset = 0;
+        frameBytes = 0;
+        framePackets = 0;
+        return true;
+    }
+
+    //------------------------
+    //Send the packets of the frame; returns 0 once they are all sent, or
+    //the time to go on at if the pacing holds the next one back
+    //------------------------
+    private long sendPackets() throws IOException {
+        //split the scan into fragments that fit in one MTU; each packet is
+        //the headers plus a slice of the frame, sent without copying it.
+        //Only the headers of the first one carry the tables. With parity
+        //packets, the packets leave room for their FEC headers, so that
+        //those fit in the MTU too.
+        int maxPacket = MTU - IP_UDP_HEADER_SIZE - RTPpacket.HEADER_SIZE;
+        if (rtpSender.fec != null)
+            maxPacket -= FecEncoder.OVERHEAD;
+        while (scanOffset < jpeg.ScanLength) {
+            int maxData = maxPacket - jpeg.fragmentheader_size(scanOffset);
+            int data_length = Math.min(maxData, jpeg.ScanLength - scanOffset);
+
+            //the marker bit is set on the last fragment of the frame
+            int marker = scanOffset + data_length == jpeg.ScanLength ? 1 : 0;
+            ByteBuffer headers = rtpSender.begin(++rtpSeqNb, timestamp(imagenb), marker);
+            jpeg.writeheader(headers, scanOffset);
+
+            int packet_length;
+            if (sendFile != null)
+                packet_length = rtpSender.send(sendFile, sendFileScan + scanOffset, data_length);
+            else {
+                sendData.limit(scanStart + scanOffset + data_length).position(scanStart + scanOffset);
+                packet_length = rtpSender.send(sendData);
+            }
+            scanOffset += data_length;
+            frameBytes += packet_length;
+            if (packet_length > 0)
+                framePackets++; //else dropped, the connection being behind
+
+            long now = System.nanoTime();
+            long next = shaper.sent(now, packet_length);
+            if (scanOffset < jpeg.ScanLength && next - now > 0)
+                return next;
+        }
+        return 0;
+    }
+
+    //------------------------
+    //All the packets of the frame are sent
+    //------------------------
+    private void finishFrame() {
+        if (LOG_FRAMES)
+            System.out.println("Send frame #" + imagenb + ", Frame size: " + (frameBytes - framePackets * RTPpacket.HEADER_SIZE)
+                               + " in " + framePackets + " packets, level " + congestionLevel + ", " + rate);
+
+        //update the counters read by the status views
+        registry.framesSent.incrementAndGet();
+        registry.bytesSent.addAndGet(frameBytes);
+        releaseFrame();
+    }
+
+    private void releaseFrame() {
+        lock.lock();
+        try {
+            if (sending != null) {
+                video.release(sending);
+                sending = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------
+    //Forward the packets of the relayed stream queued for the session, in
+    //order, from its media loop
+    //------------------------
+    class RelayTask extends MediaScheduler.Task {
+        ConcurrentLinkedQueue<RelayPacket> queue = new ConcurrentLinkedQueue<RelayPacket>();
+        AtomicInteger queued = new AtomicInteger();
+        AtomicBoolean scheduled = new AtomicBoolean();
+        boolean skipping;   //the queue was full: packets are dropped up to the next frame
+        int dropped;        //packets dropped because the queue was full
+
+        //called by the thread receiving the relayed stream only
+        void add(RelayPacket p) {
+            if (cancelled)
+                return;
+            if (queued.get() >= MAX_RELAY_QUEUE || (skipping && !p.first)) {
+                //the media loop is behind: start again at a frame once it caught up
+                skipping = true;
+                dropped++;
+                return;
+            }
+            skipping = false;
+            p.retain();
+            queue.add(p);
+            queued.incrementAndGet();
+            if (cancelled) {
+                clear(); //cancelled meanwhile, maybe cleared before the packet was added
+                return;
+            }
+            if (scheduled.compareAndSet(false, true))
+                scheduler.loopFor(RTSP_ID).schedule(this, System.nanoTime());
+        }
+
+        public long run(long deadline) {
+            scheduled.set(false); //packets added from now on schedule another run
+            RelayPacket p;
+            while ((p = queue.poll()) != null) {
+                queued.decrementAndGet();
+                try {
+                    forward(p);
+                } finally {
+                    p.release();
+                }
+            }
+            return DONE;
+        }
+
+        public void failed(Throwable t) {
+            close();
+        }
+
+        //release the packets left once cancelled
+        void clear() {
+            RelayPacket p;
+            while ((p = queue.poll()) != null) {
+                queued.decrementAndGet();
+                p.release();
+            }
+        }
+    }
+
+    //------------------------
+    //A packet of the relayed stream was received; called by the RelayStream
+    //------------------------
+    void relayed(RelayPacket p) {
+        RelayTask task = relayTask;
+        if (task != null)
+            task.add(p);
+    }
+
+    //------------------------
+    //Forward a packet of the relayed stream as one of the session: the
+    //headers rewritten to its SSRC, sequence numbers and timestamps, the
+    //payload sent from the shared buffer. Whether a frame is forwarded is
+    //decided on its first packet, from the temporal layer the target
+    //bitrate of the session allows.
+    //------------------------
+    private void forward(RelayPacket p) {
+        lock.lock();
+        try {
+            if (state != PLAYING || closed)
+                return;
+            if (p.first) {
+                congestionLevel = relay.layerFor(rate.targetBitrate());
+                relayForward = p.frame % (1 << congestionLevel) == 0;
+                if (!relayForward)
+                    registry.framesSkipped.incrementAndGet();
+                else if (!relayStarted) {
+                    relayStarted = true;
+                    relayTimestampDelta = rtpTimestampBase - p.timestamp;
+                }
+                frameBytes = 0;
+            }
+            if (!relayForward)
+                return; //skipped, or the session started in the middle of the frame
+
+            int rtpTimestamp = p.timestamp + relayTimestampDelta;
+            rtpSender.begin(++rtpSeqNb, rtpTimestamp, p.marker);
+            int packet_length = rtpSender.send(p.payload());
+            frameBytes += packet_length;
+            rate.onSent(System.nanoTime(), packet_length);
+
+            if (p.marker == 1) {
+                registry.framesSent.incrementAndGet();
+                registry.bytesSent.addAndGet(frameBytes);
+                sendReport(rtpTimestamp, p.arrival);
+            }
+        }
+        catch(Exception ex) {
+            ex.printStackTrace();
+            close();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    //------------------------
+    //RTP timestamp of a frame
+    //------------------------
+    int timestamp(int frame) {
+        return rtpTimestampBase + (int)((long)frame * FRAME_PERIOD * RTP_CLOCK / 1000);
+    }
+
+    //------------------------
+    //Send a Sender Report if one is due, right after a frame of an RTP
+    //timestamp, due at a nanoTime: it maps the wallclock time to the RTP
+    //timestamps, and lets the client give back the delay since it, from
+    //which the round trip time is measured
+    //------------------------
+    private void sendReport(int frameTimestamp, long frameTime) throws IOException {
+        long now = System.nanoTime();
+        if ((rtcp == null && interleaved == null) || reported && now - lastReport < reportInterval)
+            return;
+
+        //to a group, the reports are spaced as RFC 3550 6.2 requires, for
+        //those of the receivers to stay within the RTCP bandwidth
+        if (group == null)
+            reportInterval = TimeUnit.MILLISECONDS.toNanos(SR_PERIOD);
+        else
+            reportInterval = TimeUnit.MILLISECONDS.toNanos(group.reportInterval(rate.targetBitrate(), avgRtcpSize, !reported));
+        reported = true;
+        lastReport = now;
+
+        //timestamp of the frame just sent, moved on by the time since it was due
+        int rtpTimestamp = frameTimestamp + (int)((now - frameTime) * RTP_CLOCK / 1000000000L);
+        long ntpTimestamp = RTCPpacket.ntpTimestamp(System.currentTimeMillis());
+        RTCPpacket sr = new RTCPpacket(rtpSender.Ssrc, ntpTimestamp,
+                                       rtpTimestamp, rtpSender.packetCount, rtpSender.octetCount);
+        //the parity stream, once it sent packets, reports in the same compound packet
+        FecEncoder fec = rtpSender.fec;
+        RTCPpacket paritySr = fec == null || fec.packetCount == 0 ? null
+            : new RTCPpacket(fec.Ssrc, ntpTimestamp, rtpTimestamp, fec.packetCount, fec.octetCount);
+        byte[] packet_bits = new byte[sr.getlength() + (paritySr != null ? paritySr.getlength() : 0)];
+        int packet_length = sr.getpacket(packet_bits);
+        if (paritySr != null) {
+            byte[] parity_bits = new byte[paritySr.getlength()];
+            paritySr.getpacket(parity_bits);
+            System.arraycopy(parity_bits, 0, packet_bits, packet_length, parity_bits.length);
+            packet_length += parity_bits.length;
+        }
+        if (interleaved != null)
+            interleaved.write(rtpChannel + 1, packet_bits, packet_length);
+        else
+            rtcp.send(packet_bits, packet_length, rtcpDest);
+        avgRtcpSize += (packet_length + IP_UDP_HEADER_SIZE - avgRtcpSize) / 16;
+    }
+
+    //------------------------
+    //Handle an RTCP packet sent from the client, passed by the RtcpDemux
+    //------------------------
+    void rtcpReceived(byte[] rtcpBuf, int length) {
+        if (state != PLAYING)
+            return;
+        avgRtcpSize += (length + IP_UDP_HEADER_SIZE - avgRtcpSize) / 16;
+        RTCPpacket rtcpPkt = new RTCPpacket(rtcpBuf, length);
+        if (rtcpPkt.RC == 0 || rtcpPkt.sourceSsrc != rtpSender.Ssrc)
+            return; //no report on the stream of this session
+
+        //round trip time: now, less the time the SR reported on was sent,
+        //less the time the client held it, in 1/65536 s
+        if (rtcpPkt.LSR != 0) {
+            int a = RTCPpacket.compact(RTCPpacket.ntpTimestamp(System.currentTimeMillis()));
+            rtt = (int)(Math.max(0, a - rtcpPkt.LSR - rtcpPkt.DLSR) * 1000L >> 16);
+        }
+
+        //the Generic NACKs following the report: early feedback, sent as
+        //soon as packets went missing, whose report is not a new interval
+        if (nackReceived(rtcpBuf, rtcpPkt.getlength(), length))
+            return;
+
+        //the loss the parity packets recover costs no quality: the rate
+        //control only sees what they leave
+        float lost = rtcpPkt.fractionLost;
+        FecEncoder fec = rtpSender.fec;
+        if (fec != null)
+            lost = fec.onReport(lost);
+        System.out.println("[RTCP] " + rtcpPkt + ", RTT: " + rtt + " ms"
+                           + (fec != null ? ", FEC group: " + fec.groupSize() : ""));
+
+        rate.onReport(System.nanoTime(), lost,
+                      (int)(rtcpPkt.jitter * 1000L / RTP_CLOCK), rtt);
+    }
+
+    //------------------------------------
+    //Send again the packets the Generic NACKs of a compound RTCP packet,
+    //from offset, report lost; false if there are none
+    //------------------------------------
+    private boolean nackReceived(byte[] rtcpBuf, int offset, int length) {
+        boolean nack = false;
+        while (offset + RTCPpacket.HEADER_SIZE <= length) {
+            RTCPpacket rtcpPkt = new RTCPpacket(rtcpBuf, offset, length);
+            offset += rtcpPkt.getlength();
+            if (rtcpPkt.PayloadType != RTCPpacket.RTPFB || rtcpPkt.RC != RTCPpacket.NACK
+                || rtcpPkt.sourceSsrc != rtpSender.Ssrc)
+                continue;
+            nack = true;
+            int resent = 0;
+            try {
+                for (int seq : rtcpPkt.lost)
+                    if (rtpSender.resend(seq, rtt))
+                        resent++;
+            } catch (IOException ioe) {
+                System.out.println("Exception caught: "+ioe);
+            }
+            System.out.println("[RTCP] " + rtcpPkt + ", resent: " + resent);
+        }
+        return nack;
+    }
+
+    // Creates a DESCRIBE response string in SDP format for current media
+    private String describe(String uri) {
+        StringWriter writer1 = new StringWriter();
+        StringWriter writer2 = new StringWriter();
+
+        // Write the body first so we can get the size later
+        writer2.write("v=0" + CRLF);
+        if (FecEncoder.ENABLED) {
+            //the parity packets: a stream of the same port (RFC 5109 14.1),
+            //tied to the media stream by their SSRCs once they are known (RFC 5576)
+            writer2.write("m=video " + RTSP_dest_port + " RTP/AVP " + MJPEG_TYPE + " " + FecEncoder.PAYLOAD_TYPE + CRLF);
+            writer2.write("a=rtpmap:" + MJPEG_TYPE + " JPEG/" + RTP_CLOCK + CRLF);
+            writer2.write("a=rtpmap:" + FecEncoder.PAYLOAD_TYPE + " ulpfec/" + RTP_CLOCK + CRLF);
+            RtpSender sender = rtpSender;
+            FecEncoder fec = sender != null ? sender.fec : null;
+            if (fec != null) {
+                long ssrc = sender.Ssrc & 0xFFFFFFFFL;
+                long paritySsrc = fec.Ssrc & 0xFFFFFFFFL;
+                writer2.write("a=ssrc-group:FEC " + ssrc + " " + paritySsrc + CRLF);
+                writer2.write("a=ssrc:" + ssrc + " cname:session-" + RTSP_ID + CRLF);
+                writer2.write("a=ssrc:" + paritySsrc + " cname:session-" + RTSP_ID + CRLF);
+            }
+        }
+        else {
+            writer2.write("m=video " + RTSP_dest_port + " RTP/AVP " + MJPEG_TYPE + CRLF);
+            writer2.write("a=rtpmap:" + MJPEG_TYPE + " JPEG/" + RTP_CLOCK + CRLF);
+        }
+        writer2.write("a=control:streamid=" + RTSP_ID + CRLF);
+        writer2.write("a=mimetype:string;\"video/MJPEG\"" + CRLF);
+        String body = writer2.toString();
+
+        writer1.write("Content-Base: " + uri + CRLF);
+        writer1.write("Content-Type: " + "application/sdp" + CRLF);
+        writer1.write("Content-Length: " + body.length() + CRLF);
+        writer1.write(CRLF);
+        writer1.write(body);
+
+        return writer1.toString();
+    }
+
+    //------------------------------------
+    //RTSP Response
+    //------------------------------------
+    private String response() {
+        return response("");
+    }
+
+    //with more headers, each ended by CRLF; the empty line ends the response
+    private String response(String headers) {
+        return "RTSP/1.0 200 OK" + CRLF
+             + "CSeq: " + RTSPSeqNb + CRLF
+             + (RTSP_ID != 0 ? "Session: " + RTSP_ID + CRLF : "")
+             + headers + CRLF;
+    }
+
+    private String status(String status) {
+        return "RTSP/1.0 " + status + CRLF
+             + "CSeq: " + RTSPSeqNb + CRLF + CRLF;
+    }
+
+    private String describeResponse(String uri) {
+        return "RTSP/1.0 200 OK" + CRLF
+             + "CSeq: " + RTSPSeqNb + CRLF
+             + describe(uri);
+    }
+}
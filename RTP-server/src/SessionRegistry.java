@@ -0,0 +1,59 @@
+//SessionRegistry
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//------------------------------------
+//Process-wide table of the RTSP sessions currently set up, keyed by session ID
+//------------------------------------
+public class SessionRegistry {
+
+    static int FIRST_SESSION_ID = 123456; //ID handed to the first session
+
+    private final ConcurrentHashMap<Integer, Session> sessions;
+    private final AtomicInteger nextId;
+
+    //counters over all sessions, sampled by the status views
+    final AtomicLong framesSent = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong framesSkipped = new AtomicLong(); //to fit the target bitrates
+
+    public SessionRegistry() {
+        sessions = new ConcurrentHashMap<Integer, Session>();
+        nextId = new AtomicInteger(FIRST_SESSION_ID);
+    }
+
+    //allocate a session ID that no other session in this process uses
+    public int newSessionId() {
+        return nextId.getAndIncrement();
+    }
+
+    public void add(Session session) {
+        sessions.put(session.RTSP_ID, session);
+    }
+
+    public Session get(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public void remove(Session session) {
+        sessions.remove(session.RTSP_ID, session);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public Collection<Session> all() {
+        return sessions.values();
+    }
+
+    //one line summary of the counters
+    public String status() {
+        return "Sessions: " + size() + ", frames sent: " + framesSent.get() + ", skipped: " + framesSkipped.get()
+             + ", bytes sent: " + bytesSent.get()
+             + ", " + FrameCache.shared().status();
+    }
+}
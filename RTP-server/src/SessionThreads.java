@@ -0,0 +1,55 @@
+//SessionThreads
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+//------------------------------------
+//Thread factories for sessions that run their own blocking loops.
+//Virtual threads are looked up by reflection so the server still builds
+//and runs on JVMs older than Java 21, where it falls back to platform threads.
+//------------------------------------
+public class SessionThreads {
+
+    //------------------------------------
+    //true if this JVM can create virtual threads
+    //------------------------------------
+    public static boolean virtualAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    //------------------------------------
+    //Factory of virtual threads named prefix-0, prefix-1, ...
+    //or of daemon platform threads when virtual threads are not available
+    //------------------------------------
+    public static ThreadFactory newFactory(String prefix, boolean virtual) {
+        if (virtual) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+                Method factory = builderClass.getMethod("factory");
+                return (ThreadFactory)factory.invoke(builder);
+            } catch (Exception e) {
+                System.out.println("Virtual threads not available (" + e + "), using platform threads");
+            }
+        }
+        return platformFactory(prefix);
+    }
+
+    private static ThreadFactory platformFactory(final String prefix) {
+        final AtomicLong count = new AtomicLong();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
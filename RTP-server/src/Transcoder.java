@@ -0,0 +1,120 @@
+//Transcoder
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+//------------------------------------
+//Background service filling the quality levels of the frame cache.
+//Each worker has its own Requantizer and ImageTranslator, so the work of a
+//congested frame is done once for every session watching the file, and
+//never on the media loops.
+//------------------------------------
+public class Transcoder {
+
+    static int NB_THREADS = Integer.getInteger("rtp.transcoders",
+                                               Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static int QUEUE_SIZE = 256; //requests waiting; more are dropped and asked again later
+    static boolean REQUANTIZE = !Boolean.getBoolean("rtp.norequantize"); //DCT domain when the frame allows it
+
+    private FrameCache cache;
+    private ThreadPoolExecutor pool;
+
+    //one requantizer, translator and frame buffer per worker
+    private ThreadLocal<Requantizer> requantizer = new ThreadLocal<Requantizer>() {
+        protected Requantizer initialValue() {
+            return new Requantizer();
+        }
+    };
+    private ThreadLocal<ImageTranslator> translator = new ThreadLocal<ImageTranslator>() {
+        protected ImageTranslator initialValue() {
+            return new ImageTranslator(0.8f);
+        }
+    };
+    private ThreadLocal<byte[]> buf = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[Session.MAX_FRAME_SIZE];
+        }
+    };
+
+    public Transcoder(FrameCache cache) {
+        this.cache = cache;
+        pool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                      SessionThreads.newFactory("transcoder", false),
+                                      new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                //queue full: forget the request, the next miss asks again
+                Job job = (Job)r;
+                if (job.nb >= 0)
+                    Transcoder.this.cache.cancel(job.video, job.nb, job.level);
+            }
+        });
+    }
+
+    //quality of the JPEG encoder for a congestion level
+    static float quality(int level) {
+        return 1.0f - level * 0.2f;
+    }
+
+    //------------------------------------
+    //Transcode frame nb of a video to a level; the caller claimed it in the cache
+    //------------------------------------
+    public void request(FrameCache.Video video, int nb, int level) {
+        pool.execute(new Job(video, nb, level));
+    }
+
+    //------------------------------------
+    //Transcode every level of every frame of a video, in frame order.
+    //Runs on one worker; what does not fit in the cache budget is dropped.
+    //------------------------------------
+    public void prebuild(final FrameCache.Video video) {
+        pool.execute(new Job(video, -1, 0) {
+            public void run() {
+                for (int nb = 0; nb < video.framecount(); nb++)
+                    for (int level = 1; level < FrameCache.LEVELS; level++)
+                        if (cache.claim(video, nb, level))
+                            transcode(video, nb, level);
+                System.out.println("Quality levels of " + video.path + " built");
+            }
+        });
+    }
+
+    //------------------------------------
+    //Re-encode one frame and store it in the cache: requantized if it is
+    //a frame RTP/JPEG can carry, else decoded and encoded again
+    //------------------------------------
+    void transcode(FrameCache.Video video, int nb, int level) {
+        byte[] frame = buf.get();
+        ByteBuffer src = video.stream.slice(nb); //still mapped after the file is closed
+        int length = -1;
+        if (REQUANTIZE)
+            length = requantizer.get().requantize(src, quality(level), frame);
+        if (length < 0) {
+            length = src.remaining();
+            src.get(frame, 0, length);
+            ImageTranslator t = translator.get();
+            t.setCompressionQuality(quality(level));
+            length = t.compress(frame, length);
+        }
+        if (length > 0)
+            cache.put(video, nb, level, frame, length);
+        else
+            cache.cancel(video, nb, level);
+    }
+
+    class Job implements Runnable {
+        FrameCache.Video video;
+        int nb;
+        int level;
+
+        Job(FrameCache.Video video, int nb, int level) {
+            this.video = video;
+            this.nb = nb;
+            this.level = level;
+        }
+
+        public void run() {
+            transcode(video, nb, level);
+        }
+    }
+}